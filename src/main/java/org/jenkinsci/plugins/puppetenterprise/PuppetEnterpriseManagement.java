@@ -33,6 +33,12 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
+import org.jenkinsci.plugins.puppetenterprise.models.PollingPolicy;
+import org.jenkinsci.plugins.puppetenterprise.models.InventoryIndex;
+import org.jenkinsci.plugins.puppetenterprise.models.HieraConfig;
+import org.jenkinsci.plugins.puppetenterprise.models.CodeDeployCoalescer;
+import org.jenkinsci.plugins.puppetenterprise.http.PETokenCache;
+import org.jenkinsci.plugins.puppetenterprise.http.PuppetDBQueryCache;
 
 @Extension
 public class PuppetEnterpriseManagement extends ManagementLink {
@@ -64,6 +70,115 @@ public class PuppetEnterpriseManagement extends ManagementLink {
     return PuppetEnterpriseConfig.getPuppetMasterUrl();
   }
 
+  public PollingPolicy getPollingPolicy() {
+    return PuppetEnterpriseConfig.getPollingPolicy();
+  }
+
+  public long getTokenCacheHits() {
+    return PETokenCache.getHits();
+  }
+
+  public long getTokenCacheMisses() {
+    return PETokenCache.getMisses();
+  }
+
+  public String getTokenCacheHitRate() {
+    return String.format("%.1f%%", PETokenCache.getHitRate());
+  }
+
+  public long getQueryCacheHits() {
+    return PuppetDBQueryCache.getHits();
+  }
+
+  public long getQueryCacheMisses() {
+    return PuppetDBQueryCache.getMisses();
+  }
+
+  public String getQueryCacheHitRate() {
+    return String.format("%.1f%%", PuppetDBQueryCache.getHitRate());
+  }
+
+  public int getQueryCacheSize() {
+    return PuppetDBQueryCache.size();
+  }
+
+  public long getQueryCacheEvictions() {
+    return PuppetDBQueryCache.getEvictions();
+  }
+
+  public long getCodeDeploysShared() {
+    return CodeDeployCoalescer.getShared();
+  }
+
+  public long getCodeDeploysStarted() {
+    return CodeDeployCoalescer.getStarted();
+  }
+
+  public String getCodeDeploysSharedRate() {
+    return String.format("%.1f%%", CodeDeployCoalescer.getSharedRate());
+  }
+
+  public String getHieraDurability() {
+    return PuppetEnterpriseConfig.getHieraDurability();
+  }
+
+  public long getHieraFlushDelay() {
+    return PuppetEnterpriseConfig.getHieraFlushDelay();
+  }
+
+  public long getHieraPendingWrites() {
+    return HieraConfig.getPendingWrites();
+  }
+
+  public long getHieraFlushes() {
+    return HieraConfig.getFlushes();
+  }
+
+  public String getHieraLastFlushDuration() {
+    return HieraConfig.getLastFlushDuration() + "ms";
+  }
+
+  public String getHieraScopesLoaded() {
+    return HieraConfig.getLoadedScopeCount() + " / " + HieraConfig.getScopeCount();
+  }
+
+  public long getHieraScopeLoads() {
+    return HieraConfig.getScopeLoads();
+  }
+
+  public long getHieraScopeEvictions() {
+    return HieraConfig.getScopeEvictions();
+  }
+
+  public int getInventoryNodeCount() {
+    return InventoryIndex.getNodeCount();
+  }
+
+  public String getInventoryAge() {
+    long age = InventoryIndex.getAgeSeconds();
+    return age < 0 ? "-" : age + "s";
+  }
+
+  public long getInventoryLookups() {
+    return InventoryIndex.getLookups();
+  }
+
+  public long getInventoryFullRefreshes() {
+    return InventoryIndex.getFullRefreshes();
+  }
+
+  public long getInventoryIncrementalRefreshes() {
+    return InventoryIndex.getIncrementalRefreshes();
+  }
+
+  public long getInventoryRefreshFailures() {
+    return InventoryIndex.getRefreshFailures();
+  }
+
+  public String getInventoryLastRefreshDuration() {
+    return InventoryIndex.getLastRefreshDuration() + "ms";
+  }
+
   public FormValidation doCheckMaster(@QueryParameter String masterAddress) throws IOException, ServletException {
     try {
       PuppetEnterpriseConfig.validatePuppetMasterUrl(masterAddress);
@@ -88,6 +203,17 @@ public class PuppetEnterpriseManagement extends ManagementLink {
       JSONObject json = req.getSubmittedForm().getJSONObject("config");
 
       PuppetEnterpriseConfig.setPuppetMasterUrl(json.getString("masterAddress"));
+
+      PollingPolicy current = PuppetEnterpriseConfig.getPollingPolicy();
+      PuppetEnterpriseConfig.setPollingPolicy(new PollingPolicy(
+        json.optLong("pollInitialInterval", current.getInitialInterval()),
+        json.optLong("pollMaxInterval", current.getMaxInterval()),
+        json.optDouble("pollMultiplier", current.getMultiplier()),
+        json.optDouble("pollJitter", current.getJitter())));
+
+      PuppetEnterpriseConfig.setHieraPersistence(
+        json.optString("hieraDurability", PuppetEnterpriseConfig.getHieraDurability()),
+        json.optLong("hieraFlushDelay", PuppetEnterpriseConfig.getHieraFlushDelay()));
     } catch(Exception e) {
       throw new ServletException(e);
     }
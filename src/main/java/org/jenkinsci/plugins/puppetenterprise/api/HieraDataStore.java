@@ -11,15 +11,12 @@ import javax.servlet.ServletException;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
 import org.jenkinsci.plugins.puppetenterprise.models.HieraConfig;
+import org.jenkinsci.plugins.puppetenterprise.http.PEGson;
 
 @Extension
 public class HieraDataStore implements RootAction {
   private static final String ICON_PATH = "/plugin/puppet-enterprise-pipeline/images/cfg_logo.png";
 
-  public HieraDataStore() {
-    HieraConfig.loadGlobalConfig();
-  }
-
   public String[] getScopes() {
     Set<String> scopeSet = HieraConfig.getScopes();
     return scopeSet.toArray(new String[scopeSet.size()]);
@@ -71,12 +68,12 @@ public class HieraDataStore implements RootAction {
   }
 
   @JavaScriptMethod
-  public void deleteScope(String scope) {
+  public void deleteScope(String scope) throws IOException {
     HieraConfig.deleteScope(scope);
   }
 
   @JavaScriptMethod
-  public void deleteKey(String key, String scope) {
+  public void deleteKey(String key, String scope) throws IOException {
     HieraConfig.deleteKey(key, scope);
   }
 
@@ -132,6 +129,6 @@ public class HieraDataStore implements RootAction {
       hash.put(key, valueHash);
     }
 
-    return new Gson().toJson(hash);
+    return PEGson.get().toJson(hash);
   }
 }
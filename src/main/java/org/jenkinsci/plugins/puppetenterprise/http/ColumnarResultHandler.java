@@ -0,0 +1,229 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes a PuppetDB result array of flat rows into one array per column,
+ * straight from the response stream.
+ *
+ * Columns holding only numbers become long[] or double[], columns holding
+ * only strings become String[] with repeated values sharing one instance,
+ * and anything else becomes Object[]. Rows missing a column get null, which
+ * also turns a numeric column into Object[]. Integers are read exactly, so
+ * ids and timestamps beyond a double's precision keep every digit; a column
+ * mixing such integers with fractions becomes Object[] for the same reason.
+ */
+public final class ColumnarResultHandler implements PEResponseHandler<LinkedHashMap<String, Object>> {
+  // Larger integers written as decimals may already have lost digits
+  private static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+
+  private final String onlyField;
+
+  /**
+   * Decodes every field of every row.
+   */
+  public ColumnarResultHandler() {
+    this(null);
+  }
+
+  /**
+   * Decodes just the named field and skips the rest of each row.
+   */
+  public ColumnarResultHandler(String onlyField) {
+    this.onlyField = onlyField;
+  }
+
+  @Override public LinkedHashMap<String, Object> handle(JsonReader reader) throws IOException {
+    TypeAdapter<Object> nested = PEGson.get().getAdapter(Object.class);
+    HashMap<String, String> strings = new HashMap<String, String>();
+    LinkedHashMap<String, Column> columns = new LinkedHashMap<String, Column>();
+    int row = 0;
+
+    if (onlyField != null) {
+      columns.put(onlyField, new Column());
+    }
+
+    reader.beginArray();
+    while (reader.hasNext()) {
+      reader.beginObject();
+
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        Column column = columns.get(name);
+
+        if (column == null) {
+          if (onlyField != null) {
+            reader.skipValue();
+            continue;
+          }
+
+          column = new Column();
+          columns.put(name, column);
+        }
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+          readNumber(column, row, reader.nextString());
+        } else if (token == JsonToken.STRING) {
+          column.setObject(row, intern(strings, reader.nextString()), true);
+        } else if (token == JsonToken.NULL) {
+          reader.nextNull();
+        } else {
+          column.setObject(row, nested.read(reader), false);
+        }
+      }
+
+      reader.endObject();
+      row++;
+    }
+    reader.endArray();
+
+    LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Column> column : columns.entrySet()) {
+      result.put(column.getKey(), column.getValue().toArray(row));
+    }
+
+    return result;
+  }
+
+  private static void readNumber(Column column, int row, String text) {
+    try {
+      column.setLong(row, Long.parseLong(text));
+      return;
+    } catch(NumberFormatException e) {
+      // Not an integer, or too large for a long
+    }
+
+    double value = Double.parseDouble(text);
+
+    if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_INTEGER) {
+      column.setLong(row, (long) value);
+    } else {
+      column.setDouble(row, value);
+    }
+  }
+
+  private static String intern(HashMap<String, String> strings, String value) {
+    String existing = strings.get(value);
+    if (existing != null) {
+      return existing;
+    }
+
+    strings.put(value, value);
+    return value;
+  }
+
+  /**
+   * Values of one column. Integers, other numbers and everything else are
+   * kept in separate arrays so numeric columns are never boxed.
+   */
+  private static final class Column {
+    private long[] longs = null;
+    private double[] doubles = null;
+    private BitSet numberRows = null;
+    private BitSet doubleRows = null;
+    private Object[] objects = null;
+    private int numberCount = 0;
+    private int objectCount = 0;
+    private boolean onlyStrings = true;
+    private boolean wideLongs = false;
+
+    void setLong(int row, long value) {
+      if (longs == null) {
+        longs = new long[Math.max(16, row + 1)];
+      } else if (row >= longs.length) {
+        longs = Arrays.copyOf(longs, Math.max(row + 1, longs.length * 2));
+      }
+
+      if (numberRows == null) {
+        numberRows = new BitSet();
+      }
+
+      longs[row] = value;
+      numberRows.set(row);
+      wideLongs = wideLongs || Math.abs((double) value) >= MAX_EXACT_INTEGER;
+      numberCount++;
+    }
+
+    void setDouble(int row, double value) {
+      if (doubles == null) {
+        doubles = new double[Math.max(16, row + 1)];
+        doubleRows = new BitSet();
+      } else if (row >= doubles.length) {
+        doubles = Arrays.copyOf(doubles, Math.max(row + 1, doubles.length * 2));
+      }
+
+      if (numberRows == null) {
+        numberRows = new BitSet();
+      }
+
+      doubles[row] = value;
+      numberRows.set(row);
+      doubleRows.set(row);
+      numberCount++;
+    }
+
+    private boolean isDouble(int row) {
+      return doubleRows != null && doubleRows.get(row);
+    }
+
+    void setObject(int row, Object value, boolean isString) {
+      if (objects == null) {
+        objects = new Object[Math.max(16, row + 1)];
+      } else if (row >= objects.length) {
+        objects = Arrays.copyOf(objects, Math.max(row + 1, objects.length * 2));
+      }
+
+      objects[row] = value;
+      objectCount++;
+      onlyStrings = onlyStrings && isString;
+    }
+
+    Object toArray(int rows) {
+      if (numberCount == 0 && onlyStrings) {
+        String[] values = new String[rows];
+        if (objects != null) {
+          System.arraycopy(objects, 0, values, 0, Math.min(rows, objects.length));
+        }
+        return values;
+      }
+
+      if (objectCount == 0 && numberCount == rows) {
+        if (doubleRows == null) {
+          return Arrays.copyOf(longs, rows);
+        }
+
+        // A double[] would round the large integers
+        if (!wideLongs) {
+          double[] values = new double[rows];
+          for (int i = 0; i < rows; i++) {
+            values[i] = isDouble(i) ? doubles[i] : (double) longs[i];
+          }
+          return values;
+        }
+      }
+
+      Object[] values = new Object[rows];
+      if (objects != null) {
+        System.arraycopy(objects, 0, values, 0, Math.min(rows, objects.length));
+      }
+
+      if (numberRows != null) {
+        for (int i = numberRows.nextSetBit(0); i >= 0 && i < rows; i = numberRows.nextSetBit(i + 1)) {
+          values[i] = isDouble(i) ? (Object) Double.valueOf(doubles[i]) : (Object) Long.valueOf(longs[i]);
+        }
+      }
+
+      return values;
+    }
+  }
+}
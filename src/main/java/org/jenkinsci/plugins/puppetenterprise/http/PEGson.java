@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+
+/**
+ * The single Gson instance used for Puppet Enterprise API payloads.
+ *
+ * Gson caches the type adapter it builds for each type, so sharing one
+ * instance means the reflective adapters for the response models are only
+ * built once per controller instead of once per request.
+ */
+public final class PEGson {
+  private static final Gson gson = new Gson();
+
+  private PEGson() { }
+
+  public static Gson get() {
+    return gson;
+  }
+
+  public static <T> TypeAdapter<T> adapter(Class<T> type) {
+    return gson.getAdapter(type);
+  }
+}
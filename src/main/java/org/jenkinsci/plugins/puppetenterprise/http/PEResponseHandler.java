@@ -0,0 +1,12 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.IOException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Decodes a successful Puppet Enterprise API response straight from the
+ * response stream, so the body never has to be held as a String.
+ */
+public interface PEResponseHandler<T> {
+  T handle(JsonReader reader) throws IOException;
+}
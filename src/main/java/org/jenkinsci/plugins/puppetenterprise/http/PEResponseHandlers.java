@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The stock response handlers.
+ */
+public final class PEResponseHandlers {
+  private PEResponseHandlers() { }
+
+  /**
+   * Visits the elements of a JSON array one at a time.
+   */
+  public interface ElementVisitor {
+    void visit(Object element) throws IOException;
+  }
+
+  /**
+   * Decodes the body into LinkedTreeMap/ArrayList/String/Double values, the
+   * same shape Gson produces for Object.class.
+   */
+  public static PEResponseHandler<Object> tree() {
+    return typed(Object.class);
+  }
+
+  /**
+   * Decodes the body into the given type.
+   */
+  public static <T> PEResponseHandler<T> typed(Class<T> type) {
+    final TypeAdapter<T> adapter = PEGson.get().getAdapter(type);
+
+    return new PEResponseHandler<T>() {
+      @Override public T handle(JsonReader reader) throws IOException {
+        return adapter.read(reader);
+      }
+    };
+  }
+
+  /**
+   * Decodes the body into the given generic type.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> PEResponseHandler<T> typed(Type type) {
+    final TypeAdapter<T> adapter = (TypeAdapter<T>) PEGson.get().getAdapter(TypeToken.get(type));
+
+    return new PEResponseHandler<T>() {
+      @Override public T handle(JsonReader reader) throws IOException {
+        return adapter.read(reader);
+      }
+    };
+  }
+
+  /**
+   * Skips the body without building anything from it.
+   */
+  public static PEResponseHandler<Void> discard() {
+    return new PEResponseHandler<Void>() {
+      @Override public Void handle(JsonReader reader) throws IOException {
+        reader.skipValue();
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Decodes a top level JSON array one element at a time and hands each one
+   * to the visitor, so only a single element is in memory at once. Returns
+   * the number of elements visited.
+   */
+  public static PEResponseHandler<Long> eachElement(final ElementVisitor visitor) {
+    final TypeAdapter<Object> adapter = PEGson.get().getAdapter(Object.class);
+
+    return new PEResponseHandler<Long>() {
+      @Override public Long handle(JsonReader reader) throws IOException {
+        long count = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+          visitor.visit(adapter.read(reader));
+          count++;
+        }
+        reader.endArray();
+
+        return count;
+      }
+    };
+  }
+}
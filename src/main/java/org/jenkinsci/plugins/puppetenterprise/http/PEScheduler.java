@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Shared scheduler that drives background work against the Puppet
+ * Enterprise APIs, such as polling orchestrator jobs.
+ *
+ * Asynchronous steps schedule short tasks here instead of holding a thread
+ * for the whole lifetime of a remote job, so a handful of threads can track
+ * hundreds of concurrent jobs.
+ */
+public final class PEScheduler {
+  private static final Logger logger = Logger.getLogger(PEScheduler.class.getName());
+
+  private static final int POOL_SIZE = 4;
+
+  private static ScheduledThreadPoolExecutor executor = null;
+
+  private static volatile Listener listener = null;
+
+  private PEScheduler() { }
+
+  /**
+   * Told about each task handed to schedule, before it is scheduled.
+   */
+  public interface Listener {
+    void onSchedule(Runnable task, long delay, TimeUnit unit);
+  }
+
+  /**
+   * Sets the listener told about scheduled tasks, or clears it with null.
+   * Tests use it to check the delays steps ask for without timing them.
+   */
+  public static void setListener(Listener newListener) {
+    listener = newListener;
+  }
+
+  public static synchronized ScheduledExecutorService get() {
+    if (executor == null || executor.isShutdown()) {
+      executor = new ScheduledThreadPoolExecutor(POOL_SIZE,
+        new NamingThreadFactory(new DaemonThreadFactory(), "Puppet Enterprise scheduler"));
+      executor.setRemoveOnCancelPolicy(true);
+    }
+
+    return executor;
+  }
+
+  public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    Listener current = listener;
+    if (current != null) {
+      current.onSchedule(task, delay, unit);
+    }
+
+    return get().schedule(task, delay, unit);
+  }
+
+  @Terminator
+  public static synchronized void shutdown() {
+    if (executor != null) {
+      logger.log(Level.FINE, "Shutting down Puppet Enterprise scheduler");
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
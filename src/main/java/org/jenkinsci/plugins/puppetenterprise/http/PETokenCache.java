@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * Cache of Puppet Enterprise RBAC tokens keyed by Jenkins credentials ID.
+ *
+ * Looking up a credential scans every credential in the system, which is far
+ * too expensive to do on every API call. Entries are dropped whenever a
+ * credentials store is saved, and expire after a short time as a safety net
+ * for credentials providers that never save.
+ */
+public final class PETokenCache {
+  private static final Logger logger = Logger.getLogger(PETokenCache.class.getName());
+
+  private static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final ConcurrentHashMap<String, CachedToken> tokens = new ConcurrentHashMap<String, CachedToken>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private PETokenCache() { }
+
+  public static String getToken(@Nonnull String credentialsId) throws PEException {
+    CachedToken cached = tokens.get(credentialsId);
+
+    if (cached != null && !cached.isExpired()) {
+      hits.incrementAndGet();
+      return cached.getSecret().getPlainText();
+    }
+
+    misses.incrementAndGet();
+
+    StringCredentials credentials = lookupCredentials(credentialsId);
+    if (credentials == null) {
+      tokens.remove(credentialsId);
+      throw new PEException("Could not find Puppet Enterprise access token credentials with ID '" + credentialsId + "'");
+    }
+
+    tokens.put(credentialsId, new CachedToken(credentials.getSecret()));
+    return credentials.getSecret().getPlainText();
+  }
+
+  public static void invalidate(String credentialsId) {
+    tokens.remove(credentialsId);
+  }
+
+  public static void invalidateAll() {
+    tokens.clear();
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Percentage of token lookups answered from the cache.
+   */
+  public static double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+
+    if (total == 0) {
+      return 0.0;
+    }
+
+    return (hitCount * 100.0) / total;
+  }
+
+  public static int size() {
+    return tokens.size();
+  }
+
+  private static StringCredentials lookupCredentials(@Nonnull String credentialId) {
+    return CredentialsMatchers.firstOrNull(
+      CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.getInstance(), ACL.SYSTEM, null),
+      CredentialsMatchers.withId(credentialId)
+    );
+  }
+
+  private static final class CachedToken {
+    private final Secret secret;
+    private final long loadedAt;
+
+    CachedToken(Secret secret) {
+      this.secret = secret;
+      this.loadedAt = System.currentTimeMillis();
+    }
+
+    Secret getSecret() {
+      return this.secret;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() - this.loadedAt > MAX_AGE_MS;
+    }
+  }
+
+  /**
+   * Drops cached tokens whenever a credentials store is persisted, which is
+   * what happens when credentials are added, updated or removed.
+   */
+  @Extension public static final class CredentialsSaveListener extends SaveableListener {
+    @Override public void onChange(Saveable o, XmlFile file) {
+      boolean credentialsStore = o != null && o.getClass().getName().startsWith("com.cloudbees.plugins.credentials.");
+      boolean credentialsFile = file != null && file.getFile().getName().equals("credentials.xml");
+
+      if (credentialsStore || credentialsFile) {
+        logger.log(Level.FINE, "Credentials changed, clearing Puppet Enterprise token cache");
+        invalidateAll();
+      }
+    }
+  }
+}
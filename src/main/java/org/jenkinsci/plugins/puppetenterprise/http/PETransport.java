@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+
+import hudson.init.Terminator;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Process-wide HTTP transport for the Puppet Enterprise APIs.
+ *
+ * One pooled, keep-alive client is kept per master host and CA certificate
+ * fingerprint, so every step and build talking to the same master reuses
+ * the same TCP and TLS connections instead of handshaking on every call.
+ */
+public final class PETransport {
+  private static final Logger logger = Logger.getLogger(PETransport.class.getName());
+
+  private static final int MAX_CONNECTIONS_TOTAL = 64;
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+  private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+  private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+  private static final ConcurrentHashMap<String, PooledClient> clients = new ConcurrentHashMap<String, PooledClient>();
+
+  private PETransport() { }
+
+  /**
+   * Leases the shared client for the given master and CA certificate,
+   * creating its connection pool on first use. Clients for the same host
+   * with a different (stale) CA certificate are retired. The lease must be
+   * closed once the request and its response are done with.
+   */
+  public static Lease acquire(String host, String caCertificate) throws IOException {
+    PETrustMaterial trust = PETrustMaterial.forCertificate(caCertificate);
+    String key = host + "|" + trust.getFingerprint();
+
+    while (true) {
+      PooledClient client = clients.get(key);
+
+      if (client == null) {
+        synchronized (clients) {
+          client = clients.get(key);
+          if (client == null) {
+            client = new PooledClient(host, trust.getSSLContext());
+            retireClients(host);
+            clients.put(key, client);
+            logger.log(Level.FINE, "Created pooled HTTP client for Puppet Enterprise master " + host);
+          }
+        }
+      }
+
+      // A client retired between the lookup and the lease is already on
+      // its way out, so look again for its replacement.
+      if (client.lease()) {
+        return new Lease(client);
+      }
+    }
+  }
+
+  /**
+   * Retires every pooled client. Subsequent calls to acquire build new pools.
+   */
+  public static void reset() {
+    synchronized (clients) {
+      Iterator<Map.Entry<String, PooledClient>> itr = clients.entrySet().iterator();
+      while (itr.hasNext()) {
+        itr.next().getValue().retire();
+        itr.remove();
+      }
+    }
+  }
+
+  @Terminator
+  public static void shutdown() {
+    logger.log(Level.FINE, "Shutting down Puppet Enterprise HTTP connection pools");
+    reset();
+  }
+
+  private static void retireClients(String host) {
+    Iterator<Map.Entry<String, PooledClient>> itr = clients.entrySet().iterator();
+    while (itr.hasNext()) {
+      PooledClient existing = itr.next().getValue();
+      if (existing.getHost().equals(host)) {
+        existing.retire();
+        itr.remove();
+      }
+    }
+  }
+
+  /**
+   * A request's use of a pooled client. Closing the lease lets a retired
+   * client close once its last request is done.
+   */
+  public static final class Lease implements Closeable {
+    private final PooledClient client;
+    private boolean closed = false;
+
+    private Lease(PooledClient client) {
+      this.client = client;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+      return client.getHttpClient();
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        client.release();
+      }
+    }
+  }
+
+  /**
+   * A client and its connection pool. A retired client is no longer handed
+   * out, and is closed once the requests still using it are done.
+   */
+  private static final class PooledClient {
+    private final String host;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    // Guarded by this
+    private int inFlight = 0;
+    private boolean retired = false;
+
+    PooledClient(String host, SSLContext sslContext) {
+      this.host = host;
+
+      SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext,
+        SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+
+      Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("https", sslsf)
+        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+        .build();
+
+      this.connectionManager = new PoolingHttpClientConnectionManager(registry);
+      this.connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+      this.connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+      this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+      this.httpClient = HttpClients.custom()
+        .setConnectionManager(this.connectionManager)
+        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .build();
+    }
+
+    String getHost() {
+      return this.host;
+    }
+
+    CloseableHttpClient getHttpClient() {
+      return this.httpClient;
+    }
+
+    synchronized boolean lease() {
+      if (retired) {
+        return false;
+      }
+
+      inFlight++;
+      return true;
+    }
+
+    synchronized void release() {
+      inFlight--;
+
+      if (retired && inFlight == 0) {
+        close();
+      }
+    }
+
+    synchronized void retire() {
+      retired = true;
+
+      if (inFlight == 0) {
+        close();
+      }
+    }
+
+    private void close() {
+      try {
+        this.httpClient.close();
+      } catch(IOException e) {
+        logger.log(Level.WARNING, "Error closing Puppet Enterprise HTTP client for " + host + ": " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.conn.ssl.SSLContexts;
+
+/**
+ * Parsed CA trust material for the configured Puppet Enterprise master.
+ *
+ * The PEM bundle is parsed, loaded into a KeyStore and turned into an
+ * SSLContext once per CA change instead of once per request. Reusing the
+ * same SSLContext also lets JSSE resume TLS sessions from its client
+ * session cache, so new pooled connections skip the full handshake.
+ */
+public final class PETrustMaterial {
+  private static final Logger logger = Logger.getLogger(PETrustMaterial.class.getName());
+
+  private static final int SESSION_CACHE_SIZE = 256;
+  private static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+  private static volatile PETrustMaterial current = null;
+
+  private final String caCertificate;
+  private final String fingerprint;
+  private final int certificateCount;
+  private final SSLContext sslContext;
+
+  private PETrustMaterial(String caCertificate, String fingerprint, int certificateCount, SSLContext sslContext) {
+    this.caCertificate = caCertificate;
+    this.fingerprint = fingerprint;
+    this.certificateCount = certificateCount;
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Returns the trust material for the given PEM bundle, only parsing it
+   * when it differs from the bundle that was last parsed.
+   */
+  public static PETrustMaterial forCertificate(String caCertificate) throws IOException {
+    String pem = caCertificate == null ? "" : caCertificate;
+
+    PETrustMaterial material = current;
+    if (material != null && material.matches(pem)) {
+      return material;
+    }
+
+    synchronized (PETrustMaterial.class) {
+      material = current;
+      if (material == null || !material.matches(pem)) {
+        material = build(pem);
+        current = material;
+      }
+    }
+
+    return material;
+  }
+
+  /**
+   * Drops the cached trust material. Called whenever the master address or
+   * CA certificate changes.
+   */
+  public static void invalidate() {
+    current = null;
+  }
+
+  public String getFingerprint() {
+    return this.fingerprint;
+  }
+
+  public int getCertificateCount() {
+    return this.certificateCount;
+  }
+
+  public SSLContext getSSLContext() {
+    return this.sslContext;
+  }
+
+  private boolean matches(String pem) {
+    return this.caCertificate == pem || this.caCertificate.equals(pem);
+  }
+
+  private static PETrustMaterial build(String pem) throws IOException {
+    try {
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      keyStore.load(null, null);
+
+      // The CA may be a bundle of several certificates (e.g. an external
+      // root plus intermediates), so load every one of them.
+      Collection<? extends Certificate> certs = CertificateFactory.getInstance("X.509")
+        .generateCertificates(new ByteArrayInputStream(pem.getBytes(StandardCharsets.UTF_8)));
+
+      int index = 0;
+      for (Certificate cert : certs) {
+        String alias = "ca-" + index;
+        if (cert instanceof X509Certificate) {
+          alias = alias + "-" + ((X509Certificate) cert).getSubjectX500Principal().getName();
+        }
+
+        keyStore.setCertificateEntry(alias, cert);
+        index++;
+      }
+
+      if (index == 0) {
+        throw new IOException("No CA certificates found for the Puppet Enterprise master.");
+      }
+
+      SSLContext sslContext = SSLContexts.custom().loadTrustMaterial(keyStore).build();
+
+      SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+      if (sessionContext != null) {
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+      }
+
+      logger.log(Level.FINE, "Loaded " + index + " Puppet Enterprise CA certificate(s)");
+
+      return new PETrustMaterial(pem, DigestUtils.sha256Hex(pem), index, sslContext);
+    } catch(CertificateException e) { throw new IOException(e.getMessage(), e); }
+      catch(KeyStoreException e) { throw new IOException(e.getMessage(), e); }
+      catch(NoSuchAlgorithmException e) { throw new IOException(e.getMessage(), e); }
+      catch(KeyManagementException e) { throw new IOException(e.getMessage(), e); }
+  }
+}
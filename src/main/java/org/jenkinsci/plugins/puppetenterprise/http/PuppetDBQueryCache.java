@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+
+/**
+ * Controller wide cache of PuppetDB query results, keyed by the Puppet
+ * master, the RBAC token the results were fetched with, and the normalized
+ * PQL query. Keying by token means results are only ever handed to builds
+ * PuppetDB already answered for that token. The token itself is kept as a
+ * hash.
+ *
+ * Results are held as their JSON text, both to bound the cache by size and
+ * so every hit hands the pipeline its own copy to modify. The least
+ * recently used entries are evicted once either the entry or the size limit
+ * is reached.
+ */
+public final class PuppetDBQueryCache {
+  private static final Logger logger = Logger.getLogger(PuppetDBQueryCache.class.getName());
+
+  private static final int MAX_ENTRIES = Integer.getInteger(PuppetDBQueryCache.class.getName() + ".maxEntries", 256);
+  private static final long MAX_CHARS = Long.getLong(PuppetDBQueryCache.class.getName() + ".maxChars", 32L * 1024 * 1024);
+
+  private static final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+  private static long totalChars = 0;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private PuppetDBQueryCache() { }
+
+  /**
+   * Returns a copy of the cached results, or null if the query is not
+   * cached or its entry has expired.
+   */
+  public static ArrayList get(String master, String token, String query) {
+    String key = key(master, token, query);
+    CachedResult cached;
+
+    synchronized (results) {
+      cached = results.get(key);
+
+      if (cached != null && cached.isExpired()) {
+        remove(key);
+        cached = null;
+      }
+    }
+
+    if (cached == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    // Decoded the same way as a live response so a hit looks no different.
+    return (ArrayList) PEGson.get().fromJson(cached.getJson(), Object.class);
+  }
+
+  public static void put(String master, String token, String query, ArrayList queryResults, long ttlSeconds) {
+    if (ttlSeconds <= 0) {
+      return;
+    }
+
+    String json = PEGson.get().toJson(queryResults);
+    if (json.length() > MAX_CHARS) {
+      logger.log(Level.FINE, "Not caching PuppetDB results of " + json.length() + " characters");
+      return;
+    }
+
+    String key = key(master, token, query);
+    CachedResult entry = new CachedResult(json, TimeUnit.SECONDS.toMillis(ttlSeconds));
+
+    synchronized (results) {
+      remove(key);
+      results.put(key, entry);
+      totalChars += json.length();
+
+      Iterator<Map.Entry<String, CachedResult>> eldest = results.entrySet().iterator();
+      while ((results.size() > MAX_ENTRIES || totalChars > MAX_CHARS) && eldest.hasNext()) {
+        Map.Entry<String, CachedResult> next = eldest.next();
+        totalChars -= next.getValue().getJson().length();
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public static void invalidateAll() {
+    synchronized (results) {
+      results.clear();
+      totalChars = 0;
+    }
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  public static long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Percentage of cacheable queries answered from the cache.
+   */
+  public static double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+
+    if (total == 0) {
+      return 0.0;
+    }
+
+    return (hitCount * 100.0) / total;
+  }
+
+  public static int size() {
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  /**
+   * Collapses runs of whitespace outside of string literals so trivially
+   * different spellings of the same query share an entry.
+   */
+  public static String normalize(String query) {
+    StringBuilder normalized = new StringBuilder(query.length());
+    char quote = 0;
+    boolean pendingSpace = false;
+
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+
+      if (quote != 0) {
+        normalized.append(c);
+        if (c == '\\' && i + 1 < query.length()) {
+          normalized.append(query.charAt(++i));
+        } else if (c == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(c)) {
+        pendingSpace = normalized.length() > 0;
+      } else {
+        if (pendingSpace) {
+          normalized.append(' ');
+          pendingSpace = false;
+        }
+        if (c == '"' || c == '\'') {
+          quote = c;
+        }
+        normalized.append(c);
+      }
+    }
+
+    return normalized.toString();
+  }
+
+  private static String key(String master, String token, String query) {
+    return master + "|" + digest(token) + "|" + normalize(query);
+  }
+
+  private static String digest(String token) {
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Callers must hold the results lock.
+  private static void remove(String key) {
+    CachedResult removed = results.remove(key);
+    if (removed != null) {
+      totalChars -= removed.getJson().length();
+    }
+  }
+
+  private static final class CachedResult {
+    private final String json;
+    private final long expiresAt;
+
+    CachedResult(String json, long ttlMillis) {
+      this.json = json;
+      this.expiresAt = System.currentTimeMillis() + ttlMillis;
+    }
+
+    String getJson() {
+      return this.json;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() > this.expiresAt;
+    }
+  }
+}
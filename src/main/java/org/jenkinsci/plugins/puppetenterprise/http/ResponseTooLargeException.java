@@ -0,0 +1,15 @@
+package org.jenkinsci.plugins.puppetenterprise.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a Puppet Enterprise API response body is larger than the
+ * configured maximum.
+ */
+public class ResponseTooLargeException extends IOException {
+  public ResponseTooLargeException(long limit) {
+    super("Puppet Enterprise API response exceeded the maximum size of " + limit + " bytes");
+  }
+
+  private static final long serialVersionUID = 1L;
+}
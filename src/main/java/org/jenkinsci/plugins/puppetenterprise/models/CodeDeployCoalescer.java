@@ -0,0 +1,310 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+import hudson.model.Computer;
+
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * Shares Code Manager deploys between builds deploying the same environment
+ * of the same Puppet master with the same RBAC token at the same time.
+ * Builds with different tokens never share a deploy, since one token's
+ * deploy says nothing about whether another token may deploy.
+ *
+ * A build asking for an environment nobody is deploying starts a deploy.
+ * A build asking while a deploy is already running can't use that deploy's
+ * result, since the deploy may have fetched the control repo before the
+ * build's changes were pushed. It waits for the next deploy instead, which
+ * starts as soon as the running one finishes and is shared by every build
+ * that asked in the meantime. So no matter how many builds ask at once, at
+ * most two deploys of an environment run back to back.
+ *
+ * Deploys run on Jenkins' shared pool rather than on a build's thread, so
+ * aborting one build never cancels a deploy other builds are waiting on. A
+ * queued deploy runs with the deployer of the earliest build still waiting
+ * for it, and the queued deploys that go to the same build run together as
+ * one request, so its batches and log stay its own.
+ */
+public final class CodeDeployCoalescer {
+  private static final Logger logger = Logger.getLogger(CodeDeployCoalescer.class.getName());
+
+  // Guarded by itself
+  private static final HashMap<String, Slot> slots = new HashMap<String, Slot>();
+
+  private static final AtomicLong started = new AtomicLong();
+  private static final AtomicLong shared = new AtomicLong();
+
+  private CodeDeployCoalescer() { }
+
+  /**
+   * Deploys environments for a build.
+   */
+  public interface Deployer {
+    /**
+     * Deploys the environments and waits for them to finish, returning each
+     * environment's result.
+     */
+    Map<String, LinkedHashMap> deploy(List<String> environments) throws Exception;
+
+    /**
+     * Writes a message to the log of the build the deployer belongs to.
+     */
+    void log(String message);
+  }
+
+  /**
+   * Returns the deploy each environment's result will come from. Deploys
+   * that can start right away are started together with the given deployer.
+   */
+  public static LinkedHashMap<String, Deploy> deploy(String master, String token, List<String> environments, Deployer deployer) {
+    LinkedHashMap<String, Deploy> deploys = new LinkedHashMap<String, Deploy>();
+    List<Deploy> starting = new ArrayList<Deploy>();
+
+    synchronized (slots) {
+      for (String env : environments) {
+        String key = key(master, token, env);
+        Slot slot = slots.get(key);
+
+        if (slot == null) {
+          slot = new Slot();
+          slots.put(key, slot);
+        }
+
+        Deploy deploy;
+
+        if (slot.running == null) {
+          deploy = new Deploy(key, env, deployer);
+          slot.running = deploy;
+          starting.add(deploy);
+          started.incrementAndGet();
+        } else if (slot.next == null) {
+          deploy = new Deploy(key, env, deployer);
+          slot.next = deploy;
+          started.incrementAndGet();
+        } else {
+          deploy = slot.next;
+          deploy.waiters.add(deployer);
+          shared.incrementAndGet();
+        }
+
+        deploys.put(env, deploy);
+      }
+    }
+
+    if (!starting.isEmpty()) {
+      start(starting, deployer);
+    }
+
+    return deploys;
+  }
+
+  private static void start(final List<Deploy> batch, final Deployer deployer) {
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      @Override public void run() {
+        List<String> environments = new ArrayList<String>();
+        List<Deployer> others = new ArrayList<Deployer>();
+
+        synchronized (slots) {
+          for (Deploy deploy : batch) {
+            environments.add(deploy.environment);
+            for (Deployer waiter : deploy.waiters) {
+              if (waiter != deployer && !others.contains(waiter)) {
+                others.add(waiter);
+              }
+            }
+          }
+        }
+
+        for (Deployer waiter : others) {
+          waiter.log("Deploying " + environments + " together with another build waiting for it.");
+        }
+
+        Map<String, LinkedHashMap> results = null;
+        Throwable error = null;
+
+        try {
+          results = deployer.deploy(environments);
+        } catch(Throwable e) {
+          error = e;
+        }
+
+        for (Deploy deploy : batch) {
+          LinkedHashMap result = results == null ? null : results.get(deploy.environment);
+
+          if (result == null && error == null) {
+            deploy.finish(null, new PEException("Code Manager did not report a result for the environment"));
+          } else {
+            deploy.finish(result, error);
+          }
+        }
+
+        startNext(batch);
+      }
+    });
+  }
+
+  /**
+   * Starts the deploys queued behind the finished ones, grouped by the
+   * earliest build still waiting for each.
+   */
+  private static void startNext(List<Deploy> finished) {
+    LinkedHashMap<Deployer, List<Deploy>> batches = new LinkedHashMap<Deployer, List<Deploy>>();
+
+    synchronized (slots) {
+      for (Deploy deploy : finished) {
+        String key = deploy.key;
+        Slot slot = slots.get(key);
+
+        if (slot == null || slot.running != deploy) {
+          continue;
+        }
+
+        Deploy next = slot.next;
+        slot.running = next;
+        slot.next = null;
+
+        if (next == null) {
+          slots.remove(key);
+          continue;
+        }
+
+        if (next.waiters.isEmpty()) {
+          // Every build that asked for it has been aborted
+          logger.log(Level.FINE, "Dropping the next deploy of [" + next.environment + "], no build is waiting for it");
+          slots.remove(key);
+          continue;
+        }
+
+        Deployer runner = next.waiters.get(0);
+        List<Deploy> batch = batches.get(runner);
+        if (batch == null) {
+          batch = new ArrayList<Deploy>();
+          batches.put(runner, batch);
+        }
+        batch.add(next);
+      }
+    }
+
+    for (Map.Entry<Deployer, List<Deploy>> batch : batches.entrySet()) {
+      logger.log(Level.FINE, "Starting the next deploy of " + batch.getValue().size() + " environments for the builds that asked while they were deploying");
+      start(batch.getValue(), batch.getKey());
+    }
+  }
+
+  private static String key(String master, String token, String environment) {
+    return master + "|" + digest(token) + "|" + environment;
+  }
+
+  private static String digest(String token) {
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Deploys started for a build.
+   */
+  public static long getStarted() {
+    return started.get();
+  }
+
+  /**
+   * Builds that waited on a deploy started for another build.
+   */
+  public static long getShared() {
+    return shared.get();
+  }
+
+  public static double getSharedRate() {
+    long sharedCount = shared.get();
+    long total = sharedCount + started.get();
+
+    if (total == 0) {
+      return 0.0;
+    }
+
+    return (sharedCount * 100.0) / total;
+  }
+
+  private static final class Slot {
+    private Deploy running = null;
+    private Deploy next = null;
+  }
+
+  /**
+   * One deploy of an environment, and the result every build waiting on it
+   * gets.
+   */
+  public static final class Deploy {
+    private final String key;
+    private final String environment;
+    private final Deployer requester;
+
+    // Guarded by slots. Builds waiting for the deploy, in the order they asked.
+    private final List<Deployer> waiters = new ArrayList<Deployer>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile LinkedHashMap result = null;
+    private volatile Throwable error = null;
+
+    private Deploy(String key, String environment, Deployer requester) {
+      this.key = key;
+      this.environment = environment;
+      this.requester = requester;
+      this.waiters.add(requester);
+    }
+
+    private void finish(LinkedHashMap result, Throwable error) {
+      this.result = result;
+      this.error = error;
+      done.countDown();
+    }
+
+    /**
+     * Whether the given deployer asked for the deploy first, rather than
+     * joining a deploy another build asked for.
+     */
+    public boolean isRequestedBy(Deployer deployer) {
+      return this.requester == deployer;
+    }
+
+    /**
+     * Waits for the deploy to finish and returns a copy of its result, or
+     * throws the error the deploy request failed with. A waiter interrupted
+     * before the deploy starts no longer counts as waiting for it.
+     */
+    public LinkedHashMap await(Deployer waiter) throws Exception {
+      try {
+        done.await();
+      } catch(InterruptedException e) {
+        synchronized (slots) {
+          waiters.remove(waiter);
+        }
+        throw e;
+      }
+
+      if (error instanceof Exception) {
+        throw (Exception) error;
+      } else if (error != null) {
+        throw new PEException(String.valueOf(error.getMessage()));
+      }
+
+      return new LinkedHashMap(result);
+    }
+  }
+}
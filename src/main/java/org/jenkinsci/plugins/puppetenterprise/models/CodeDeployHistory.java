@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The deploy signature of the last successful Code Manager deploy of each
+ * environment, by Puppet master. Code Manager's deploy signature is the
+ * control repo commit the environment was deployed from.
+ */
+public final class CodeDeployHistory {
+  private static final Logger logger = Logger.getLogger(CodeDeployHistory.class.getName());
+
+  private static HashMap<String, String> signatures = null;
+  private static File loadedFrom = null;
+
+  private CodeDeployHistory() { }
+
+  public static synchronized String getLastSignature(String master, String environment) {
+    return getSignatures().get(key(master, environment));
+  }
+
+  public static synchronized void record(String master, String environment, String signature) {
+    if (signature == null || signature.equals(getSignatures().get(key(master, environment)))) {
+      return;
+    }
+
+    getSignatures().put(key(master, environment), signature);
+
+    try {
+      getConfigFile().write(signatures);
+    } catch(IOException e) {
+      logger.log(Level.SEVERE, "Error saving Code Manager deploy history: " + e.getMessage());
+    }
+  }
+
+  private static String key(String master, String environment) {
+    return master + "|" + environment;
+  }
+
+  private static HashMap<String, String> getSignatures() {
+    XmlFile xml = getConfigFile();
+
+    // Reload whenever Jenkins moves to another home directory
+    if (signatures == null || !xml.getFile().equals(loadedFrom)) {
+      signatures = new HashMap<String, String>();
+      loadedFrom = xml.getFile();
+
+      try {
+        if (xml.exists()) {
+          signatures = (HashMap<String, String>) xml.read();
+        }
+      } catch(IOException e) {
+        logger.log(Level.SEVERE, "Error loading Code Manager deploy history: " + e.getMessage());
+      }
+    }
+
+    return signatures;
+  }
+
+  @SuppressFBWarnings(
+    value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE",
+    justification = "The getInstance is never null or the code can't be running."
+  )
+  private static XmlFile getConfigFile() {
+    File rootDir = Jenkins.getInstance().getRootDir();
+    return new XmlFile(new File(rootDir, "puppet_enterprise_code_deploys.xml"));
+  }
+}
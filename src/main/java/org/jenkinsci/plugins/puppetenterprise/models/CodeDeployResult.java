@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The result of deploying one environment, as returned by
+ * /code-manager/v1/deploys.
+ */
+public class CodeDeployResult {
+  private String environment;
+  private long id;
+  private String status;
+  @SerializedName("deploy-signature") private String deploySignature;
+  @SerializedName("file-sync") private FileSync fileSync;
+  private Error error;
+
+  public String getEnvironment() {
+    return this.environment;
+  }
+
+  public long getId() {
+    return this.id;
+  }
+
+  public String getStatus() {
+    return this.status;
+  }
+
+  public String getDeploySignature() {
+    return this.deploySignature;
+  }
+
+  public String getEnvironmentCommit() {
+    return this.fileSync == null ? null : this.fileSync.environmentCommit;
+  }
+
+  public String getCodeCommit() {
+    return this.fileSync == null ? null : this.fileSync.codeCommit;
+  }
+
+  public boolean isFailed() {
+    return "failed".equals(this.status);
+  }
+
+  public String getErrorMessage() {
+    if (this.error == null) {
+      return null;
+    }
+
+    return this.error.getMessage();
+  }
+
+  public static class FileSync {
+    @SerializedName("environment-commit") private String environmentCommit;
+    @SerializedName("code-commit") private String codeCommit;
+  }
+
+  public static class Error {
+    private String kind;
+    private String msg;
+
+    public String getMessage() {
+      return this.msg != null ? this.msg : this.kind;
+    }
+  }
+}
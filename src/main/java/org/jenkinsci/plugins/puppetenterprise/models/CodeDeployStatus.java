@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The state of Code Manager's deploy queue, as returned by
+ * /code-manager/v1/deploys/status.
+ */
+public class CodeDeployStatus {
+  @SerializedName("deploys-status") private DeploysStatus deploysStatus;
+  @SerializedName("file-sync-storage-status") private StorageStatus storageStatus;
+
+  /**
+   * Whether the response reported the deploy queue at all. Without it no
+   * deploy can be known to have finished.
+   */
+  public boolean hasDeploysStatus() {
+    return this.deploysStatus != null;
+  }
+
+  /**
+   * Whether the given deploy is still waiting or running. A response
+   * without the deploy queue never reports a deploy as done.
+   */
+  public boolean isPending(String environment, long id) {
+    if (this.deploysStatus == null) {
+      return true;
+    }
+
+    return contains(this.deploysStatus.incoming, environment, id)
+      || contains(this.deploysStatus.queued, environment, id)
+      || contains(this.deploysStatus.deploying, environment, id);
+  }
+
+  /**
+   * The error of the given deploy if it failed, otherwise null.
+   */
+  public Deploy getFailure(String environment, long id) {
+    if (this.deploysStatus == null || this.deploysStatus.failed == null) {
+      return null;
+    }
+
+    for (Deploy deploy : this.deploysStatus.failed) {
+      if (deploy.matches(environment, id)) {
+        return deploy;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * The signature of the code file sync last stored for the environment.
+   */
+  public String getDeploySignature(String environment) {
+    if (this.storageStatus == null || this.storageStatus.deployed == null) {
+      return null;
+    }
+
+    for (Deployed deployed : this.storageStatus.deployed) {
+      if (environment.equals(deployed.environment)) {
+        return deployed.deploySignature;
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean contains(List<Deploy> deploys, String environment, long id) {
+    if (deploys == null) {
+      return false;
+    }
+
+    for (Deploy deploy : deploys) {
+      if (deploy.matches(environment, id)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public static class DeploysStatus {
+    @SerializedName("new") private List<Deploy> incoming;
+    private List<Deploy> queued;
+    private List<Deploy> deploying;
+    private List<Deploy> failed;
+  }
+
+  public static class Deploy {
+    private String environment;
+    private long id;
+    private CodeDeployResult.Error error;
+
+    boolean matches(String environment, long id) {
+      return this.id == id && environment.equals(this.environment);
+    }
+
+    public String getErrorMessage() {
+      return this.error == null ? null : this.error.getMessage();
+    }
+  }
+
+  public static class StorageStatus {
+    private List<Deployed> deployed;
+  }
+
+  public static class Deployed {
+    private String environment;
+    @SerializedName("deploy-signature") private String deploySignature;
+  }
+}
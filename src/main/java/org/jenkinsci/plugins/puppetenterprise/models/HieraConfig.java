@@ -3,148 +3,832 @@ package org.jenkinsci.plugins.puppetenterprise.models;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import hudson.security.ACL;
+import hudson.Util;
 import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
 import hudson.model.Saveable;
 import jenkins.model.Jenkins;
 import java.util.*;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.Serializable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.jenkinsci.plugins.puppetenterprise.http.PEScheduler;
+
+/**
+ * Hiera data set by pipelines, by scope and key.
+ *
+ * Each scope is stored in its own file, named by a digest of the scope's
+ * name so any name makes a valid file name on any filesystem, and only read
+ * once it is first used. An index file lists the scope names, so they are
+ * known without reading every scope. Scopes nobody has used for a while are
+ * dropped from memory again, unless they have changes not yet in their file.
+ *
+ * Each loaded scope is a concurrent map of immutable entries, so lookups
+ * never block or see a half written value. Changes are appended to a journal
+ * rather than rewriting scope files. Once the journal grows past a limit,
+ * the files of just the scopes it changed are rewritten in the background,
+ * and at startup the journal is replayed on top of the scope files. How soon
+ * changes reach the disk depends on the durability set in the global
+ * configuration.
+ */
 public final class HieraConfig implements Serializable {
-  private static HashMap hierarchy = new HashMap();
+  // Loaded scopes. Scopes not loaded yet are only in scopeNames.
+  private static volatile ConcurrentHashMap<String, Scope> hierarchy = new ConcurrentHashMap<String, Scope>();
+  private static volatile Set<String> scopeNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Every change is on disk before the step that made it finishes.
+   */
+  public static final String DURABILITY_SYNC = "sync";
+
+  /**
+   * Changes are written to disk in the background after the flush delay, so
+   * the changes made during the delay share one disk write.
+   */
+  public static final String DURABILITY_DELAYED = "delayed";
+
+  /**
+   * Changes are only written to disk when Jenkins shuts down.
+   */
+  public static final String DURABILITY_ON_SHUTDOWN = "on-shutdown";
+
+  private static final int COMPACT_AFTER = Integer.getInteger(HieraConfig.class.getName() + ".compactAfter", 1000);
+  private static final long IDLE_TIMEOUT_MS = Long.getLong(HieraConfig.class.getName() + ".idleTimeout", TimeUnit.MINUTES.toMillis(10));
+  private static final long EVICTION_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final String SCOPE_DIR = "puppet_enterprise_hiera_store";
+  private static final String SCOPE_INDEX = "scopes.xml";
+
+  // Scope names in the index file, guarded by compactLock
+  private static Set<String> indexedScopes = new HashSet<String>();
+
+  // Changes are applied and journaled under journalLock, so the journal
+  // replays them in the order they were made.
+  private static final Object journalLock = new Object();
+  private static HieraJournal journal = null;
+
+  // Scopes changed since their files were last written, guarded by journalLock
+  private static final HashSet<String> dirtyScopes = new HashSet<String>();
+
+  private static boolean flushScheduled = false;
+
+  private static final AtomicLong pendingWrites = new AtomicLong();
+  private static final AtomicLong flushes = new AtomicLong();
+  private static volatile long lastFlushDuration = 0;
+
+  // Scopes are read from their files under a lock of their own rather than
+  // journalLock, so lookups never wait on changes being written to disk.
+  // Writers take it inside journalLock when they load a scope or drop one.
+  private static final Object[] scopeLocks = new Object[64];
+  static {
+    for (int i = 0; i < scopeLocks.length; i++) {
+      scopeLocks[i] = new Object();
+    }
+  }
+
+  private static final AtomicLong scopeLoads = new AtomicLong();
+  private static final AtomicLong scopeEvictions = new AtomicLong();
+
+  // Guarded by evictionLock
+  private static final Object evictionLock = new Object();
+  private static ScheduledFuture<?> evictionTask = null;
+
+  // Held while scope files are written, so an evicted scope is never read
+  // back from a file that is about to be replaced.
+  private static final Object compactLock = new Object();
+  private static final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
 
   private static final Logger logger = Logger.getLogger(HieraConfig.class.getName());
 
-  static {
+  private HieraConfig() {
     loadGlobalConfig();
   }
 
-  private HieraConfig() {
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void init() {
     loadGlobalConfig();
   }
 
   public static Object getKeyValue(String scope, String key) {
-    if (HieraConfig.hierarchy.get(scope) == null) {
+    Entry entry = getEntry(scope, key);
+    return entry == null ? null : entry.value;
+  }
+
+  public static String getKeySource(String scope, String key) {
+    Entry entry = getEntry(scope, key);
+    return entry == null ? null : entry.source;
+  }
+
+  private static Entry getEntry(String scope, String key) {
+    Scope scopeHierarchy = getScope(scope);
+
+    if (scopeHierarchy == null) {
       return null;
     }
 
-    HashMap scopeHierarchy = (HashMap) HieraConfig.hierarchy.get(scope);
+    return scopeHierarchy.keys.get(key);
+  }
 
-    if (scopeHierarchy.get(key) == null) {
-      return null;
+  private static Scope getScope(String name) {
+    Scope scope = hierarchy.get(name);
+
+    if (scope == null) {
+      if (!scopeNames.contains(name)) {
+        return null;
+      }
+
+      try {
+        scope = loadScope(hierarchy, name);
+      } catch(IOException e) {
+        logger.log(Level.SEVERE, "Error loading Hiera scope " + name + ": " + e.getMessage());
+        return null;
+      }
+    }
+
+    if (scope != null) {
+      scope.lastUsed = System.currentTimeMillis();
     }
 
-    HashMap keyData = (HashMap) scopeHierarchy.get(key);
+    return scope;
+  }
 
-    return keyData.get("value");
+  private static Object scopeLock(String name) {
+    return scopeLocks[(name.hashCode() & 0x7fffffff) % scopeLocks.length];
   }
 
-  public static String getKeySource(String scope, String key) {
-    HashMap scopeHierarchy = (HashMap) HieraConfig.hierarchy.get(scope);
+  // Lookups call this without journalLock. A scope that isn't loaded has no
+  // changes missing from its file, so reading the file is enough.
+  private static Scope loadScope(ConcurrentHashMap<String, Scope> loaded, String name) throws IOException {
+    Scope scope = loaded.get(name);
 
-    if (scopeHierarchy == null) {
-      return null;
+    if (scope != null) {
+      return scope;
     }
 
-    HashMap keyData = (HashMap) scopeHierarchy.get(key);
+    synchronized (scopeLock(name)) {
+      scope = loaded.get(name);
+
+      if (scope != null || !scopeNames.contains(name)) {
+        return scope;
+      }
 
-    return (String) keyData.get("source");
+      XmlFile file = getScopeFile(name);
+      scope = new Scope(file.exists() ? fromHashMap((HashMap) ((HashMap) file.read()).get("keys")) : new ConcurrentHashMap<String, Entry>());
+      loaded.put(name, scope);
+    }
+
+    scopeLoads.incrementAndGet();
+    scheduleEviction();
+
+    return scope;
+  }
+
+  // Callers must hold journalLock.
+  private static Scope writableScope(ConcurrentHashMap<String, Scope> loaded, String name) throws IOException {
+    Scope scope = loadScope(loaded, name);
+
+    if (scope == null) {
+      scope = new Scope(new ConcurrentHashMap<String, Entry>());
+      loaded.put(name, scope);
+      scopeNames.add(name);
+    }
+
+    return scope;
   }
 
   public static Set<String> getScopes() {
-    return hierarchy.keySet();
+    return Collections.unmodifiableSet(scopeNames);
   }
 
   public static Set<String> getKeys(String scope) {
-    HashMap scopeHierarchy = (HashMap) hierarchy.get(scope);
-    return scopeHierarchy.keySet();
+    Scope scopeHierarchy = getScope(scope);
+
+    if (scopeHierarchy == null) {
+      return Collections.emptySet();
+    }
+
+    return Collections.unmodifiableSet(scopeHierarchy.keys.keySet());
   }
 
-  public static void deleteScope(String scope) {
-    if (hierarchy.get(scope) == null) {
-      logger.log(Level.WARNING, "Attempted to delete non-existent hiera Scope " + scope);
-    } else {
-      hierarchy.remove(scope);
+  public static void deleteScope(String scope) throws IOException {
+    Commit commit;
 
-      try {
-        save();
-      } catch(IOException e) {
-        logger.log(Level.SEVERE, "Error saving Hiera configuration: " + e.getMessage());
+    synchronized (journalLock) {
+      // A lookup loading the scope either finishes first or finds it gone
+      synchronized (scopeLock(scope)) {
+        hierarchy.remove(scope);
+
+        if (!scopeNames.remove(scope)) {
+          logger.log(Level.WARNING, "Attempted to delete non-existent hiera Scope " + scope);
+          return;
+        }
       }
+
+      dirtyScopes.add(scope);
+      commit = journal(HieraJournal.Record.deleteScope(scope));
     }
+
+    sync(commit);
   }
 
-  public static void deleteKey(String key, String scope) {
-    if (hierarchy.get(scope) == null) {
-      logger.log(Level.WARNING, "Attempted to delete key '" + key + " from non-existent hiera Scope " + scope);
-    } else {
-      HashMap scopeHierarchy = (HashMap) hierarchy.get(scope);
+  public static void deleteKey(String key, String scope) throws IOException {
+    Commit commit;
+
+    synchronized (journalLock) {
+      Scope scopeHierarchy = loadScope(hierarchy, scope);
 
-      if (scopeHierarchy.get(key) == null) {
+      if (scopeHierarchy == null) {
+        logger.log(Level.WARNING, "Attempted to delete key '" + key + " from non-existent hiera Scope " + scope);
+        return;
+      } else if (scopeHierarchy.keys.remove(key) == null) {
         logger.log(Level.WARNING, "Attempted to delete non-existent key '" + key + " from hiera Scope " + scope);
+        return;
+      }
+
+      dirtyScopes.add(scope);
+      commit = journal(HieraJournal.Record.deleteKey(scope, key));
+    }
+
+    sync(commit);
+  }
+
+  /**
+   * Sets a key. Throws if the scope can't be read or the change can't be
+   * journaled, in which case it is only on disk once the store is saved.
+   */
+  public static void setKeyValue(String scope, String key, String source, Object value) throws IOException {
+    Commit commit;
+
+    synchronized (journalLock) {
+      writableScope(hierarchy, scope).keys.put(key, new Entry(source, value));
+      dirtyScopes.add(scope);
+      commit = journal(HieraJournal.Record.set(scope, key, source, value));
+    }
+
+    sync(commit);
+  }
+
+  /**
+   * Sets many keys, in one or more scopes, as a single change. Lookups see
+   * either none of the new values or all of them, and the change is saved
+   * with one write.
+   */
+  public static void setKeyValues(Map<String, ? extends Map<String, Object>> scopes, String source) throws IOException {
+    LinkedHashMap<String, LinkedHashMap<String, Object>> values = new LinkedHashMap<String, LinkedHashMap<String, Object>>();
+    for (Map.Entry<String, ? extends Map<String, Object>> scope : scopes.entrySet()) {
+      values.put(scope.getKey(), new LinkedHashMap<String, Object>(scope.getValue()));
+    }
+
+    Commit commit;
+
+    synchronized (journalLock) {
+      hierarchy = putAll(hierarchy, values, source);
+      commit = journal(HieraJournal.Record.setAll(values, source));
+    }
+
+    sync(commit);
+  }
+
+  // Copies the changed scopes and the scope map itself, so the update can
+  // be swapped in whole. Callers must hold journalLock.
+  private static ConcurrentHashMap<String, Scope> putAll(ConcurrentHashMap<String, Scope> loaded,
+      Map<String, LinkedHashMap<String, Object>> values, String source) throws IOException {
+    for (String name : values.keySet()) {
+      loadScope(loaded, name);
+    }
+
+    ConcurrentHashMap<String, Scope> updated = new ConcurrentHashMap<String, Scope>(loaded);
+
+    for (Map.Entry<String, LinkedHashMap<String, Object>> scope : values.entrySet()) {
+      Scope existing = loaded.get(scope.getKey());
+      ConcurrentHashMap<String, Entry> keys = existing == null
+        ? new ConcurrentHashMap<String, Entry>()
+        : new ConcurrentHashMap<String, Entry>(existing.keys);
+
+      for (Map.Entry<String, Object> key : scope.getValue().entrySet()) {
+        keys.put(key.getKey(), new Entry(source, key.getValue()));
+      }
+
+      updated.put(scope.getKey(), new Scope(keys));
+    }
+
+    scopeNames.addAll(values.keySet());
+    dirtyScopes.addAll(values.keySet());
+
+    return updated;
+  }
+
+  // Callers must hold journalLock. If the change can't be journaled it is
+  // kept in memory, its scope stays marked changed, and the changed scopes
+  // are saved right away instead. In sync mode, returns the write the
+  // caller syncs once it has let go of journalLock.
+  private static Commit journal(HieraJournal.Record record) throws IOException {
+    String durability = PuppetEnterpriseConfig.getHieraDurability();
+    pendingWrites.incrementAndGet();
+
+    if (DURABILITY_ON_SHUTDOWN.equals(durability)) {
+      return null;
+    }
+
+    File journalFile = getJournalFile();
+
+    if (journal == null || !journal.getFile().equals(journalFile)) {
+      if (journal != null) {
+        journal.close();
+      }
+      journal = new HieraJournal(journalFile);
+    }
+
+    Commit commit = null;
+
+    try {
+      journal.append(record);
+
+      if (DURABILITY_DELAYED.equals(durability)) {
+        scheduleFlush();
       } else {
-        scopeHierarchy.remove(key);
+        commit = new Commit(journal, journal.write());
+      }
+    } catch(IOException e) {
+      journalFailed(e);
+      throw e;
+    }
+
+    if (journal.getRecords() >= COMPACT_AFTER) {
+      scheduleCompaction();
+    }
+
+    return commit;
+  }
+
+  // Callers must hold journalLock.
+  private static void journalFailed(IOException e) {
+    logger.log(Level.SEVERE, "Error saving Hiera configuration: " + e.getMessage());
+
+    if (journal != null) {
+      journal.discard();
+      journal = null;
+    }
+
+    scheduleCompaction();
+  }
+
+  private static void scheduleCompaction() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      PEScheduler.schedule(new Runnable() {
+        @Override public void run() {
+          compactionScheduled.set(false);
+
+          try {
+            save();
+          } catch(IOException e) {
+            logger.log(Level.SEVERE, "Error saving Hiera configuration: " + e.getMessage());
+          }
+        }
+      }, 0, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // Callers must hold journalLock.
+  private static void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+
+    flushScheduled = true;
+    PEScheduler.schedule(new Runnable() {
+      @Override public void run() {
+        Commit commit = null;
+
+        synchronized (journalLock) {
+          flushScheduled = false;
+
+          if (journal != null) {
+            try {
+              commit = new Commit(journal, journal.write());
+            } catch(IOException e) {
+              journalFailed(e);
+              return;
+            }
+          }
+        }
 
         try {
-          save();
+          sync(commit);
         } catch(IOException e) {
-          logger.log(Level.SEVERE, "Error saving Hiera configuration: " + e.getMessage());
+          // Already logged, and the store saved instead
+        }
+      }
+    }, PuppetEnterpriseConfig.getHieraFlushDelay(), TimeUnit.MILLISECONDS);
+  }
+
+  // Waits for a journaled change to reach the disk, without journalLock so
+  // other changes and lookups carry on meanwhile. Changes waiting at the
+  // same time share one sync.
+  private static void sync(Commit commit) throws IOException {
+    if (commit == null) {
+      return;
+    }
+
+    long started = System.currentTimeMillis();
+
+    try {
+      if (!commit.journal.sync(commit.length)) {
+        return;
+      }
+    } catch(IOException e) {
+      synchronized (journalLock) {
+        // Otherwise it already failed, and whoever saw it saved the store
+        if (journal == commit.journal) {
+          journalFailed(e);
         }
       }
+      throw e;
     }
+
+    pendingWrites.set(0);
+    flushes.incrementAndGet();
+    lastFlushDuration = System.currentTimeMillis() - started;
   }
 
-  public static void setKeyValue(String scope, String key, String source, Object value) {
-    if (HieraConfig.hierarchy.get(scope) == null) {
-      HieraConfig.hierarchy.put(scope, new HashMap());
+  private static void scheduleEviction() {
+    synchronized (evictionLock) {
+      if (evictionTask != null && !evictionTask.isDone()) {
+        return;
+      }
+
+      evictionTask = PEScheduler.get().scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          evictIdleScopes();
+        }
+      }, EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
+  }
+
+  private static void evictIdleScopes() {
+    long now = System.currentTimeMillis();
 
-    HashMap scopeHierarchy = (HashMap) HieraConfig.hierarchy.get(scope);
+    synchronized (compactLock) {
+      synchronized (journalLock) {
+        Iterator<Map.Entry<String, Scope>> scopes = hierarchy.entrySet().iterator();
 
-    HashMap keyData = new HashMap();
-    keyData.put("source", source);
-    keyData.put("value", value);
+        while (scopes.hasNext()) {
+          Map.Entry<String, Scope> scope = scopes.next();
 
-    scopeHierarchy.put(key, keyData);
-    HieraConfig.hierarchy.put(scope, scopeHierarchy);
+          if (!dirtyScopes.contains(scope.getKey()) && now - scope.getValue().lastUsed > IDLE_TIMEOUT_MS) {
+            scopes.remove();
+            scopeEvictions.incrementAndGet();
+          }
+        }
+      }
+    }
+  }
 
+  /**
+   * Changes made but not yet written to disk.
+   */
+  public static long getPendingWrites() {
+    return pendingWrites.get();
+  }
+
+  public static long getFlushes() {
+    return flushes.get();
+  }
+
+  public static long getLastFlushDuration() {
+    return lastFlushDuration;
+  }
+
+  public static int getScopeCount() {
+    return scopeNames.size();
+  }
+
+  public static int getLoadedScopeCount() {
+    return hierarchy.size();
+  }
+
+  public static long getScopeLoads() {
+    return scopeLoads.get();
+  }
+
+  public static long getScopeEvictions() {
+    return scopeEvictions.get();
+  }
+
+  /**
+   * Finds the scopes on disk from the index, then replays the journal on top
+   * of them. Only scopes the journal changed are read, along with any scope
+   * file the index doesn't list yet because Jenkins stopped while saving.
+   */
+  public static void loadGlobalConfig() {
+    synchronized (compactLock) {
+      synchronized (journalLock) {
+        if (journal != null) {
+          journal.close();
+          journal = null;
+        }
+
+        try {
+          scopeNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+          dirtyScopes.clear();
+
+          readScopeNames();
+
+          ConcurrentHashMap<String, Scope> loaded = new ConcurrentHashMap<String, Scope>();
+          migrate(loaded);
+
+          // Journals left by an unfinished compaction are older than the
+          // current journal. Replaying changes the scope files already have
+          // leaves them unchanged.
+          loaded = replay(loaded, getCompactingFile());
+          loaded = replay(loaded, getJournalFile());
+
+          hierarchy = loaded;
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Error loading Hiera configuration: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Callers must hold compactLock and journalLock.
+  private static void readScopeNames() throws IOException {
+    HashMap<String, String> indexed = new HashMap<String, String>();
+    XmlFile index = getScopeIndexFile();
+
+    if (index.exists()) {
+      for (Object name : (List) index.read()) {
+        indexed.put(getScopeFile((String) name).getFile().getName(), (String) name);
+      }
+    }
+
+    indexedScopes = new HashSet<String>();
+    File[] files = getScopeDir().listFiles();
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      if (!file.getName().endsWith(".xml") || file.getName().equals(SCOPE_INDEX)) {
+        continue;
+      }
+
+      String name = indexed.get(file.getName());
+      if (name != null) {
+        indexedScopes.add(name);
+      } else {
+        try {
+          name = (String) ((HashMap) new XmlFile(file).read()).get("scope");
+        } catch(IOException e) {
+          logger.log(Level.WARNING, "Could not read Hiera scope file " + file + ": " + e.getMessage());
+        }
+
+        if (name == null) {
+          logger.log(Level.WARNING, "Ignoring Hiera scope file " + file + ", it doesn't name its scope");
+          continue;
+        }
+
+        logger.log(Level.INFO, "Found Hiera scope " + name + " missing from the scope index");
+      }
+
+      scopeNames.add(name);
+    }
+  }
+
+  // Stores from before scopes had their own files are a single file. Its
+  // scopes are loaded and marked changed, and the file is deleted once the
+  // next compaction has written them out. Until then it is the oldest copy
+  // of the data, so it is read before the journals.
+  private static void migrate(ConcurrentHashMap<String, Scope> loaded) throws IOException {
+    XmlFile xml = getConfigFile();
+
+    if (!xml.exists()) {
+      return;
+    }
+
+    if (xml.getFile().length() == 0) {
+      if (!xml.getFile().delete()) {
+        logger.log(Level.WARNING, "Could not delete empty Hiera store " + xml.getFile());
+      }
+      return;
+    }
+
+    HashMap saved = (HashMap) xml.read();
+    if (saved == null) {
+      return;
+    }
+
+    for (Object entry : saved.entrySet()) {
+      Map.Entry scope = (Map.Entry) entry;
+      String name = (String) scope.getKey();
+
+      loaded.put(name, new Scope(fromHashMap((HashMap) scope.getValue())));
+      scopeNames.add(name);
+      dirtyScopes.add(name);
+    }
+
+    logger.log(Level.INFO, "Moving " + saved.size() + " Hiera scopes from " + xml.getFile() + " to " + getScopeDir());
+  }
+
+  // Callers must hold journalLock.
+  private static ConcurrentHashMap<String, Scope> replay(ConcurrentHashMap<String, Scope> loaded, File journalFile) throws IOException {
+    for (HieraJournal.Record record : HieraJournal.read(journalFile)) {
+      if (HieraJournal.Record.SET_ALL.equals(record.op)) {
+        loaded = putAll(loaded, (Map<String, LinkedHashMap<String, Object>>) record.value, record.source);
+      } else if (HieraJournal.Record.SET.equals(record.op)) {
+        writableScope(loaded, record.scope).keys.put(record.key, new Entry(record.source, record.value));
+        dirtyScopes.add(record.scope);
+      } else if (HieraJournal.Record.DELETE_KEY.equals(record.op)) {
+        Scope scope = loadScope(loaded, record.scope);
+        if (scope != null) {
+          scope.keys.remove(record.key);
+          dirtyScopes.add(record.scope);
+        }
+      } else if (HieraJournal.Record.DELETE_SCOPE.equals(record.op)) {
+        loaded.remove(record.scope);
+        scopeNames.remove(record.scope);
+        dirtyScopes.add(record.scope);
+      }
+    }
+
+    return loaded;
+  }
+
+  /**
+   * Rewrites the files of the scopes changed since the last save, and
+   * empties the journal. Changes made while the files are written go to a
+   * fresh journal, so they never wait on it.
+   */
+  public static void save() throws IOException {
+    synchronized (compactLock) {
+      File compacting = getCompactingFile();
+      HashMap<String, HashMap> changed = new HashMap<String, HashMap>();
+      TreeSet<String> names;
+
+      synchronized (journalLock) {
+        if (journal != null) {
+          journal.close();
+          journal = null;
+        }
+
+        // If an earlier compaction failed, its journal is still waiting to be
+        // folded. The current journal stays put and is replayed after it.
+        File journalFile = getJournalFile();
+        if (!compacting.exists() && journalFile.exists() && !journalFile.renameTo(compacting)) {
+          throw new IOException("Could not move " + journalFile + " to " + compacting);
+        }
+
+        for (String name : dirtyScopes) {
+          Scope scope = hierarchy.get(name);
+          changed.put(name, scope == null ? null : toHashMap(scope));
+        }
+
+        dirtyScopes.clear();
+        pendingWrites.set(0);
+        names = new TreeSet<String>(scopeNames);
+      }
+
+      try {
+        getScopeDir().mkdirs();
+
+        for (Map.Entry<String, HashMap> scope : changed.entrySet()) {
+          XmlFile file = getScopeFile(scope.getKey());
+
+          if (scope.getValue() != null) {
+            HashMap saved = new HashMap();
+            saved.put("scope", scope.getKey());
+            saved.put("keys", scope.getValue());
+            file.write(saved);
+          } else if (file.exists() && !file.getFile().delete()) {
+            throw new IOException("Could not delete " + file.getFile());
+          }
+        }
+
+        if (!names.equals(indexedScopes)) {
+          getScopeIndexFile().write(new ArrayList<String>(names));
+          indexedScopes = names;
+        }
+
+        // The single file store is only gone once all its scopes are written
+        XmlFile legacy = getConfigFile();
+        if (legacy.exists() && !legacy.getFile().delete()) {
+          throw new IOException("Could not delete " + legacy.getFile());
+        }
+      } catch(IOException e) {
+        synchronized (journalLock) {
+          dirtyScopes.addAll(changed.keySet());
+        }
+        throw e;
+      }
+
+      if (compacting.exists() && !compacting.delete()) {
+        logger.log(Level.WARNING, "Could not delete compacted Hiera journal " + compacting);
+      }
+    }
+  }
+
+  /**
+   * Writes every change to disk, however the store is configured.
+   */
+  @Terminator
+  public static void shutdown() {
     try {
       save();
     } catch(IOException e) {
       logger.log(Level.SEVERE, "Error saving Hiera configuration: " + e.getMessage());
     }
+
+    synchronized (evictionLock) {
+      if (evictionTask != null) {
+        evictionTask.cancel(false);
+        evictionTask = null;
+      }
+    }
   }
 
-  @SuppressFBWarnings(
-    value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE",
-    justification = "The getInstance is never null or the code can't be running."
-  )
-  public static void loadGlobalConfig() {
+  // A scope's keys are saved as a HashMap of each key to its source and
+  // value, the same as each scope of the single file store. Its file holds
+  // them under "keys", next to the scope's name under "scope".
+  private static HashMap toHashMap(Scope scope) {
+    HashMap saved = new HashMap();
+
+    for (Map.Entry<String, Entry> key : scope.keys.entrySet()) {
+      HashMap keyData = new HashMap();
+      keyData.put("source", key.getValue().source);
+      keyData.put("value", key.getValue().value);
+      saved.put(key.getKey(), keyData);
+    }
+
+    return saved;
+  }
+
+  private static ConcurrentHashMap<String, Entry> fromHashMap(HashMap saved) {
+    ConcurrentHashMap<String, Entry> loaded = new ConcurrentHashMap<String, Entry>();
+
+    if (saved == null) {
+      return loaded;
+    }
+
+    for (Object key : saved.entrySet()) {
+      Map.Entry keyEntry = (Map.Entry) key;
+      Map keyData = (Map) keyEntry.getValue();
+      loaded.put((String) keyEntry.getKey(), new Entry((String) keyData.get("source"), keyData.get("value")));
+    }
+
+    return loaded;
+  }
+
+  private static File getScopeDir() {
+    return new File(getConfigFile().getFile().getParentFile(), SCOPE_DIR);
+  }
+
+  private static XmlFile getScopeFile(String scope) {
+    return new XmlFile(new File(getScopeDir(), digest(scope) + ".xml"));
+  }
+
+  private static XmlFile getScopeIndexFile() {
+    return new XmlFile(new File(getScopeDir(), SCOPE_INDEX));
+  }
+
+  // Scope names can be long and differ only in case, so they don't make
+  // safe file names themselves.
+  private static String digest(String scope) {
     try {
-      XmlFile xml = getConfigFile();
-      if (xml.exists()) {
-        HieraConfig.hierarchy = (HashMap) xml.read();
-      } else {
-        File rootDir = Jenkins.getInstance().getRootDir();
-        File hiera_store = new File(rootDir, "puppet_enterprise_hiera_store.xml");
-        new FileOutputStream(hiera_store).close();
-      }
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, "Error loading Hiera configuration: " + e.getMessage());
+      return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(scope.getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
     }
   }
 
-  public static void save() throws IOException {
-    getConfigFile().write(HieraConfig.hierarchy);
+  private static File getJournalFile() {
+    return new File(getConfigFile().getFile().getParentFile(), "puppet_enterprise_hiera_store.journal");
+  }
+
+  private static File getCompactingFile() {
+    return new File(getConfigFile().getFile().getParentFile(), "puppet_enterprise_hiera_store.journal.compacting");
   }
 
+  /**
+   * The single file the whole store was kept in before each scope had its
+   * own file. It only exists until its scopes have been moved.
+   */
   @SuppressFBWarnings(
     value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE",
     justification = "The values are asserted to not be null, but findbugs doesn't know that."
@@ -161,4 +845,46 @@ public final class HieraConfig implements Serializable {
 
     return hiera_store_xml;
   }
+
+  /**
+   * A loaded scope's keys.
+   */
+  private static final class Scope {
+    private final ConcurrentHashMap<String, Entry> keys;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private Scope(ConcurrentHashMap<String, Entry> keys) {
+      this.keys = keys;
+    }
+  }
+
+  /**
+   * A key's value and the job that set it. Entries are replaced, never
+   * changed, so readers always see a matching source and value.
+   */
+  private static final class Entry implements Serializable {
+    private final String source;
+    private final Object value;
+
+    private Entry(String source, Object value) {
+      this.source = source;
+      this.value = value;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * A change written to a journal, and how far the journal has to be synced
+   * for it to be on disk.
+   */
+  private static final class Commit {
+    private final HieraJournal journal;
+    private final long length;
+
+    private Commit(HieraJournal journal, long length) {
+      this.journal = journal;
+      this.length = length;
+    }
+  }
 }
@@ -0,0 +1,302 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only log of changes to the Hiera store since its last snapshot.
+ *
+ * Each record is its length, a CRC32 of its body, and the body, which is the
+ * change serialized with Jenkins' XStream so values keep the same types they
+ * have in the snapshot. A record cut short by a crash fails its length or
+ * checksum, and it and anything after it is dropped when the log is read.
+ */
+final class HieraJournal {
+  private static final Logger logger = Logger.getLogger(HieraJournal.class.getName());
+
+  // Larger lengths can only come from a damaged record
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+  private final File file;
+  private volatile FileOutputStream fileOut = null;
+  private DataOutputStream out = null;
+  private long records = 0;
+  private boolean discarded = false;
+
+  // Syncs wait on the disk without the caller's lock, so appends carry on
+  // meanwhile. Closing the journal takes this lock too, so a file is never
+  // closed under a sync.
+  private final Object syncLock = new Object();
+
+  // Length of the file when it was opened or last synced, guarded by syncLock
+  private long synced = 0;
+
+  // Length of the file at the end of the last complete record written
+  private volatile long written = 0;
+
+  HieraJournal(File file) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Records appended since the journal was opened.
+   */
+  long getRecords() {
+    return records;
+  }
+
+  /**
+   * Appends a record. It may stay buffered in memory until the next write.
+   */
+  void append(Record record) throws IOException {
+    byte[] body = Jenkins.XSTREAM2.toXML(record).getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+
+    if (out == null) {
+      synchronized (syncLock) {
+        synced = file.length();
+      }
+      written = file.length();
+      fileOut = new FileOutputStream(file, true);
+      out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    out.writeInt(body.length);
+    out.writeInt((int) crc.getValue());
+    out.write(body);
+    records++;
+  }
+
+  /**
+   * Hands appended records to the operating system without waiting for the
+   * disk. Must be called under the same lock as append. Returns the length
+   * of the file, to pass to sync.
+   */
+  long write() throws IOException {
+    if (out == null) {
+      return 0;
+    }
+
+    out.flush();
+    written = fileOut.getChannel().position();
+    return written;
+  }
+
+  /**
+   * Waits for the file up to the given length to reach the disk. Unlike
+   * append and write it needs no lock, and writers syncing at the same time
+   * share one sync: whoever syncs first covers everything written so far.
+   * Returns false when an earlier sync or the journal closing already did.
+   * Throws when the journal was discarded before the length was synced.
+   */
+  boolean sync(long length) throws IOException {
+    synchronized (syncLock) {
+      if (synced >= length) {
+        return false;
+      }
+
+      FileOutputStream syncing = fileOut;
+      if (discarded || syncing == null) {
+        throw new IOException("Hiera journal " + file + " was closed before it reached the disk");
+      }
+
+      // Records written since the sync started are covered by a later one
+      long syncedTo = written;
+      syncing.getFD().sync();
+      synced = syncedTo;
+
+      return true;
+    }
+  }
+
+  /**
+   * Closes the journal after a failed append, write or sync. Records not
+   * synced yet, including any half written one, are thrown away and the file
+   * is cut back to its last sync, so later appends follow a complete record.
+   */
+  void discard() {
+    synchronized (syncLock) {
+      discarded = true;
+
+      if (out == null) {
+        return;
+      }
+
+      try {
+        fileOut.close();
+      } catch(IOException e) {
+        logger.log(Level.WARNING, "Error closing Hiera journal " + file + ": " + e.getMessage());
+      }
+      out = null;
+      fileOut = null;
+
+      try {
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+          truncate.setLength(synced);
+        } finally {
+          truncate.close();
+        }
+      } catch(IOException e) {
+        logger.log(Level.WARNING, "Could not cut unsynced records off Hiera journal " + file + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Syncs and closes the journal, so writers still waiting on a sync find
+   * their records already on disk.
+   */
+  void close() {
+    synchronized (syncLock) {
+      if (out == null) {
+        return;
+      }
+
+      try {
+        out.flush();
+        fileOut.getFD().sync();
+        synced = fileOut.getChannel().position();
+      } catch(IOException e) {
+        logger.log(Level.WARNING, "Error syncing Hiera journal " + file + ": " + e.getMessage());
+      }
+
+      try {
+        out.close();
+      } catch(IOException e) {
+        logger.log(Level.WARNING, "Error closing Hiera journal " + file + ": " + e.getMessage());
+      }
+      out = null;
+      fileOut = null;
+    }
+  }
+
+  /**
+   * Reads every complete record of a journal file. A damaged tail is cut off
+   * the file so later appends follow the last good record.
+   */
+  static List<Record> read(File file) throws IOException {
+    List<Record> read = new ArrayList<Record>();
+
+    if (!file.exists()) {
+      return read;
+    }
+
+    long good = 0;
+    boolean damaged = false;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+    try {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch(EOFException e) {
+          break;
+        }
+
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+          damaged = true;
+          break;
+        }
+
+        int checksum = in.readInt();
+        byte[] body = new byte[length];
+        in.readFully(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+          damaged = true;
+          break;
+        }
+
+        read.add((Record) Jenkins.XSTREAM2.fromXML(new String(body, StandardCharsets.UTF_8)));
+        good += 8 + length;
+      }
+    } catch(EOFException e) {
+      damaged = true;
+    } finally {
+      in.close();
+    }
+
+    if (damaged) {
+      logger.log(Level.WARNING, "Dropping incomplete records at the end of Hiera journal " + file);
+
+      RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+      try {
+        truncate.setLength(good);
+      } finally {
+        truncate.close();
+      }
+    }
+
+    return read;
+  }
+
+  /**
+   * One change to the Hiera store.
+   */
+  static final class Record {
+    static final String SET = "set";
+    static final String SET_ALL = "setAll";
+    static final String DELETE_KEY = "deleteKey";
+    static final String DELETE_SCOPE = "deleteScope";
+
+    final String op;
+    final String scope;
+    final String key;
+    final String source;
+    final Object value;
+
+    private Record(String op, String scope, String key, String source, Object value) {
+      this.op = op;
+      this.scope = scope;
+      this.key = key;
+      this.source = source;
+      this.value = value;
+    }
+
+    static Record set(String scope, String key, String source, Object value) {
+      return new Record(SET, scope, key, source, value);
+    }
+
+    /**
+     * Sets many keys at once. The value is a map of scopes to maps of keys
+     * and values.
+     */
+    static Record setAll(LinkedHashMap<String, LinkedHashMap<String, Object>> values, String source) {
+      return new Record(SET_ALL, null, null, source, values);
+    }
+
+    static Record deleteKey(String scope, String key) {
+      return new Record(DELETE_KEY, scope, key, null, null);
+    }
+
+    static Record deleteScope(String scope) {
+      return new Record(DELETE_SCOPE, scope, null, null, null);
+    }
+  }
+}
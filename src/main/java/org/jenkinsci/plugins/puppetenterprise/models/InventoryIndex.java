@@ -0,0 +1,511 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.internal.LinkedTreeMap;
+
+import hudson.Util;
+import hudson.init.Terminator;
+
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
+import org.jenkinsci.plugins.puppetenterprise.http.PEScheduler;
+import org.jenkinsci.plugins.puppetenterprise.http.PETokenCache;
+import org.jenkinsci.plugins.workflow.PEException;
+import org.jenkinsci.plugins.workflow.steps.PuppetEnterpriseStep;
+
+/**
+ * In-memory index of the PuppetDB inventory, so node lookups by certname,
+ * fact or trusted fact don't need a PuppetDB query.
+ *
+ * PuppetDB only returns what the RBAC token may see, so there is one index
+ * per master and token, and a pipeline only ever reads an index loaded with
+ * the token its own credentials resolve to. An index is only built once a
+ * pipeline first uses it. From then on it is refreshed in the background
+ * with just the nodes whose inventory changed, plus an occasional full
+ * refresh to drop deactivated nodes, until nobody has used it for a while.
+ * Refreshes build a new snapshot without holding any lock and publish it
+ * when done, so readers always see a complete snapshot and never wait on a
+ * refresh unless the snapshot is older than they allow. Only one refresh of
+ * an index runs at a time: lookups finding the snapshot too old while one is
+ * running wait for it rather than starting their own.
+ */
+public final class InventoryIndex {
+  private static final Logger logger = Logger.getLogger(InventoryIndex.class.getName());
+
+  private static final long REFRESH_INTERVAL_MS = Long.getLong(InventoryIndex.class.getName() + ".refreshInterval", TimeUnit.MINUTES.toMillis(1));
+  private static final long FULL_REFRESH_INTERVAL_MS = Long.getLong(InventoryIndex.class.getName() + ".fullRefreshInterval", TimeUnit.HOURS.toMillis(1));
+  private static final long IDLE_TIMEOUT_MS = Long.getLong(InventoryIndex.class.getName() + ".idleTimeout", TimeUnit.MINUTES.toMillis(30));
+
+  private static final String INVENTORY_ENDPOINT = "/pdb/query/v4/inventory";
+
+  // Keyed by master and a digest of the token
+  private static final ConcurrentHashMap<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+
+  private static final AtomicLong lookups = new AtomicLong();
+  private static final AtomicLong fullRefreshes = new AtomicLong();
+  private static final AtomicLong incrementalRefreshes = new AtomicLong();
+  private static final AtomicLong refreshFailures = new AtomicLong();
+  private static volatile long lastRefreshDuration = 0;
+
+  private InventoryIndex() { }
+
+  /**
+   * Returns a snapshot of the index for the step's credentials no older
+   * than maxAgeMs, refreshing it first if needed.
+   */
+  public static Snapshot get(PuppetEnterpriseStep step, long maxAgeMs) throws PEException {
+    lookups.incrementAndGet();
+
+    String master = PuppetEnterpriseConfig.getPuppetMasterUrl();
+    String token = PETokenCache.getToken(step.getCredentialsId());
+    String key = master + "|" + digest(token);
+
+    Index index = indexes.get(key);
+    if (index == null) {
+      indexes.putIfAbsent(key, new Index(key, master, digest(token)));
+      index = indexes.get(key);
+    }
+
+    index.lastUsed = System.currentTimeMillis();
+    index.credentialsId = step.getCredentialsId();
+    index.startRefreshing();
+
+    return index.get(token, maxAgeMs);
+  }
+
+  public static int getNodeCount() {
+    int count = 0;
+    for (Index index : indexes.values()) {
+      count = Math.max(count, index.snapshot.get().nodes.size());
+    }
+    return count;
+  }
+
+  /**
+   * Seconds since the oldest index was refreshed, or -1 if there is none.
+   */
+  public static long getAgeSeconds() {
+    long age = -1;
+    for (Index index : indexes.values()) {
+      Snapshot current = index.snapshot.get();
+      if (current.master != null) {
+        age = Math.max(age, TimeUnit.MILLISECONDS.toSeconds(current.getAge()));
+      }
+    }
+    return age;
+  }
+
+  public static long getLookups() {
+    return lookups.get();
+  }
+
+  public static long getFullRefreshes() {
+    return fullRefreshes.get();
+  }
+
+  public static long getIncrementalRefreshes() {
+    return incrementalRefreshes.get();
+  }
+
+  public static long getRefreshFailures() {
+    return refreshFailures.get();
+  }
+
+  public static long getLastRefreshDuration() {
+    return lastRefreshDuration;
+  }
+
+  @Terminator
+  public static void shutdown() {
+    for (Index index : indexes.values()) {
+      index.stop();
+    }
+  }
+
+  private static String digest(String token) {
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The index of one master as seen by one token.
+   */
+  private static final class Index {
+    private final String key;
+    private final String master;
+    private final String tokenDigest;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(Snapshot.empty());
+    private volatile long lastUsed = 0;
+
+    // The refresh in progress, if any, guarded by this
+    private Refresh running = null;
+
+    // Credentials the latest lookup resolved to this index's token
+    private volatile String credentialsId;
+
+    // Guarded by this
+    private ScheduledFuture<?> refreshTask = null;
+
+    Index(String key, String master, String tokenDigest) {
+      this.key = key;
+      this.master = master;
+      this.tokenDigest = tokenDigest;
+    }
+
+    synchronized void startRefreshing() {
+      if (refreshTask == null) {
+        refreshTask = PEScheduler.get().scheduleWithFixedDelay(new Runnable() {
+          @Override public void run() {
+            refreshInBackground();
+          }
+        }, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    synchronized void stop() {
+      if (refreshTask != null) {
+        refreshTask.cancel(false);
+        refreshTask = null;
+      }
+      indexes.remove(key, this);
+    }
+
+    private void refreshInBackground() {
+      if (System.currentTimeMillis() - lastUsed > IDLE_TIMEOUT_MS) {
+        logger.log(Level.FINE, "Inventory index unused, stopping background refreshes");
+        stop();
+        return;
+      }
+
+      try {
+        // Only keep refreshing while the credentials still hold the same token for the same master
+        String token = PETokenCache.getToken(credentialsId);
+
+        if (!master.equals(PuppetEnterpriseConfig.getPuppetMasterUrl()) || !tokenDigest.equals(digest(token))) {
+          logger.log(Level.FINE, "Credentials or master of an inventory index changed, dropping it");
+          stop();
+          return;
+        }
+
+        // Skip this round if a lookup is already refreshing the index
+        Refresh refresh = startRefresh();
+        if (refresh != null) {
+          run(refresh, token);
+        }
+      } catch(Exception e) {
+        logger.log(Level.WARNING, "Failed to refresh the Puppet Enterprise inventory index", e);
+      }
+    }
+
+    /**
+     * Returns a snapshot no older than maxAgeMs. If it is older, either
+     * refreshes it or waits for the refresh already running.
+     */
+    Snapshot get(String token, long maxAgeMs) throws PEException {
+      Snapshot current = snapshot.get();
+      if (current.getAge() <= maxAgeMs) {
+        return current;
+      }
+
+      Refresh refresh;
+      boolean started = false;
+
+      synchronized (this) {
+        if (running == null) {
+          running = new Refresh();
+          started = true;
+        }
+        refresh = running;
+      }
+
+      if (started) {
+        run(refresh, token);
+      } else {
+        refresh.await();
+      }
+
+      return snapshot.get();
+    }
+
+    // Returns null if a refresh is already running
+    private synchronized Refresh startRefresh() {
+      if (running != null) {
+        return null;
+      }
+
+      running = new Refresh();
+      return running;
+    }
+
+    private void run(Refresh refresh, String token) throws PEException {
+      PEException failure = null;
+
+      try {
+        load(token);
+      } catch(PEException e) {
+        failure = e;
+        throw e;
+      } finally {
+        synchronized (this) {
+          running = null;
+        }
+        refresh.finish(failure);
+      }
+    }
+
+    private void load(String token) throws PEException {
+      Snapshot current = snapshot.get();
+      long started = System.currentTimeMillis();
+      boolean full = current.master == null || current.watermark == null
+        || started - current.lastFullRefresh > FULL_REFRESH_INTERVAL_MS;
+
+      try {
+        PEResponse response;
+
+        if (full) {
+          response = PEClient.request(token, INVENTORY_ENDPOINT, 8081, "GET", null,
+            PEResponseHandlers.typed(PuppetDBRow.LIST), PEClient.DEFAULT_MAX_RESPONSE_BYTES);
+        } else {
+          ArrayList<Object> query = new ArrayList<Object>();
+          query.add(">=");
+          query.add("timestamp");
+          query.add(current.watermark);
+
+          LinkedTreeMap body = new LinkedTreeMap();
+          body.put("query", query);
+          response = PEClient.request(token, INVENTORY_ENDPOINT, 8081, "POST", body,
+            PEResponseHandlers.typed(PuppetDBRow.LIST), PEClient.DEFAULT_MAX_RESPONSE_BYTES);
+        }
+
+        Integer responseCode = response.getResponseCode();
+        if (responseCode < 200 || responseCode >= 300) {
+          throw new PEException(String.valueOf(response.getResponseBody()), responseCode);
+        }
+
+        List<PuppetDBRow> rows = (List<PuppetDBRow>) response.getResponseBody();
+        publish(full ? Snapshot.full(master, rows, started) : current.merge(rows, started));
+
+        if (full) {
+          fullRefreshes.incrementAndGet();
+        } else {
+          incrementalRefreshes.incrementAndGet();
+        }
+      } catch(PEException e) {
+        refreshFailures.incrementAndGet();
+        throw e;
+      } catch(Exception e) {
+        refreshFailures.incrementAndGet();
+        throw new PEException("Could not refresh the inventory index: " + e.getMessage());
+      } finally {
+        lastRefreshDuration = System.currentTimeMillis() - started;
+      }
+    }
+
+    private void publish(Snapshot loaded) {
+      snapshot.set(loaded);
+    }
+  }
+
+  /**
+   * One refresh of an index, which lookups needing a fresher snapshot wait
+   * on instead of refreshing the index themselves.
+   */
+  private static final class Refresh {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile PEException failure = null;
+
+    void finish(PEException failure) {
+      this.failure = failure;
+      done.countDown();
+    }
+
+    // A failed refresh fails every lookup waiting on it, rather than each
+    // of them trying again at once
+    void await() throws PEException {
+      try {
+        done.await();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PEException("Interrupted waiting for the inventory index to refresh");
+      }
+
+      if (failure != null) {
+        throw new PEException("Could not refresh the inventory index: " + failure.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Normalizes fact values for comparison, so a whole number fact matches
+   * both 2 and "2" no matter how JSON decoded it.
+   */
+  static String normalizeValue(Object value) {
+    if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      if (number == Math.rint(number) && !Double.isInfinite(number)) {
+        return String.valueOf((long) number);
+      }
+    }
+
+    return String.valueOf(value);
+  }
+
+  /**
+   * An immutable view of the inventory. Per-path lookup tables are built on
+   * first use and live as long as the snapshot.
+   */
+  public static final class Snapshot {
+    private final String master;
+    private final long loadedAt;
+    private final long lastFullRefresh;
+    private final String watermark;
+    private final HashMap<String, PuppetDBRow> nodes;
+    private final ConcurrentHashMap<String, Map<String, List<String>>> paths = new ConcurrentHashMap<String, Map<String, List<String>>>();
+
+    private Snapshot(String master, long loadedAt, long lastFullRefresh, String watermark, HashMap<String, PuppetDBRow> nodes) {
+      this.master = master;
+      this.loadedAt = loadedAt;
+      this.lastFullRefresh = lastFullRefresh;
+      this.watermark = watermark;
+      this.nodes = nodes;
+    }
+
+    static Snapshot empty() {
+      return new Snapshot(null, 0, 0, null, new HashMap<String, PuppetDBRow>());
+    }
+
+    static Snapshot full(String master, List<PuppetDBRow> rows, long loadedAt) {
+      HashMap<String, PuppetDBRow> nodes = new HashMap<String, PuppetDBRow>();
+      String watermark = addRows(nodes, rows, null);
+      return new Snapshot(master, loadedAt, loadedAt, watermark, nodes);
+    }
+
+    Snapshot merge(List<PuppetDBRow> rows, long loadedAt) {
+      HashMap<String, PuppetDBRow> merged = new HashMap<String, PuppetDBRow>(this.nodes);
+      String newWatermark = addRows(merged, rows, this.watermark);
+      return new Snapshot(this.master, loadedAt, this.lastFullRefresh, newWatermark, merged);
+    }
+
+    private static String addRows(HashMap<String, PuppetDBRow> nodes, List<PuppetDBRow> rows, String watermark) {
+      if (rows == null) {
+        return watermark;
+      }
+
+      for (PuppetDBRow row : rows) {
+        String certname = row.getCertname();
+        String timestamp = row.getTimestamp();
+
+        if (certname == null) {
+          continue;
+        }
+
+        nodes.put(certname, row);
+
+        if (timestamp != null && (watermark == null || timestamp.compareTo(watermark) > 0)) {
+          watermark = timestamp;
+        }
+      }
+
+      return watermark;
+    }
+
+    long getAge() {
+      return this.master == null ? Long.MAX_VALUE : System.currentTimeMillis() - this.loadedAt;
+    }
+
+    /**
+     * A copy of the node's inventory, or null if the node isn't known.
+     */
+    public LinkedTreeMap getNode(String certname) {
+      PuppetDBRow node = nodes.get(certname);
+
+      // Pipelines get their own copy so they can't modify the index
+      return node == null ? null : node.toMap();
+    }
+
+    /**
+     * Sorted certnames of the nodes matching every path and value, such as
+     * "facts.os.family" = "RedHat" or "trusted.extensions.pp_role" = "web".
+     */
+    public List<String> find(Map<String, Object> filters) {
+      List<String> matches = null;
+
+      for (Map.Entry<String, Object> filter : filters.entrySet()) {
+        List<String> certnames = index(filter.getKey()).get(normalizeValue(filter.getValue()));
+
+        if (certnames == null) {
+          return new ArrayList<String>();
+        }
+
+        if (matches == null) {
+          matches = new ArrayList<String>(certnames);
+        } else {
+          matches.retainAll(new HashSet<String>(certnames));
+        }
+      }
+
+      if (matches == null) {
+        matches = new ArrayList<String>(nodes.keySet());
+        Collections.sort(matches);
+      }
+
+      return matches;
+    }
+
+    private Map<String, List<String>> index(String path) {
+      Map<String, List<String>> index = paths.get(path);
+      if (index != null) {
+        return index;
+      }
+
+      String[] segments = path.split("\\.");
+      HashMap<String, List<String>> built = new HashMap<String, List<String>>();
+
+      for (Map.Entry<String, PuppetDBRow> node : nodes.entrySet()) {
+        Object value = node.getValue().getPath(segments);
+
+        if (value == null || value instanceof Map) {
+          continue;
+        }
+
+        // Array facts match any of their elements
+        List<?> values = value instanceof List ? (List<?>) value : Collections.singletonList(value);
+        for (Object element : values) {
+          String key = normalizeValue(element);
+          List<String> certnames = built.get(key);
+          if (certnames == null) {
+            certnames = new ArrayList<String>();
+            built.put(key, certnames);
+          }
+          certnames.add(node.getKey());
+        }
+      }
+
+      for (List<String> certnames : built.values()) {
+        Collections.sort(certnames);
+      }
+
+      paths.putIfAbsent(path, built);
+      return paths.get(path);
+    }
+  }
+}
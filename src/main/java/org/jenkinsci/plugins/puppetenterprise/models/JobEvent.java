@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.util.List;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * An orchestrator job event, as returned by /orchestrator/v1/jobs/:id/events.
+ */
+public class JobEvent {
+  private long id;
+  private String type;
+  private String timestamp;
+  private String message;
+  private Details details;
+
+  public long getId() {
+    return this.id;
+  }
+
+  public String getType() {
+    return this.type;
+  }
+
+  public String getMessage() {
+    return this.message;
+  }
+
+  public String getNode() {
+    return this.details == null ? null : this.details.node;
+  }
+
+  public static class Details {
+    private String node;
+  }
+
+  /**
+   * A page of events and the cursor to request the next page from.
+   */
+  public static class Page {
+    private List<JobEvent> items;
+    @SerializedName("next-events") private NextEvents nextEvents;
+
+    public List<JobEvent> getItems() {
+      return this.items;
+    }
+
+    public Long getNextEvent() {
+      return this.nextEvents == null ? null : this.nextEvents.event;
+    }
+  }
+
+  public static class NextEvents {
+    private Long event;
+  }
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.util.List;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * One node's result in an orchestrator job, as returned by
+ * /orchestrator/v1/jobs/:id/nodes.
+ */
+public class JobNode {
+  private String name;
+  private String state;
+  private String timestamp;
+  private Details details;
+
+  public String getName() {
+    return this.name;
+  }
+
+  public String getState() {
+    return this.state;
+  }
+
+  public String getTimestamp() {
+    return this.timestamp;
+  }
+
+  public Metrics getMetrics() {
+    return this.details == null ? null : this.details.metrics;
+  }
+
+  public String getReportUrl() {
+    return this.details == null ? null : this.details.reportUrl;
+  }
+
+  public String getMessage() {
+    return this.details == null ? null : this.details.message;
+  }
+
+  public boolean isFailed() {
+    return "failed".equals(this.state) || "errored".equals(this.state);
+  }
+
+  public static class Details {
+    private Metrics metrics;
+    @SerializedName("report-url") private String reportUrl;
+    private String message;
+  }
+
+  public static class Metrics {
+    private int failed;
+    private int changed;
+    private int skipped;
+    private int total;
+    //PE versions prior to 2016.4 do not include corrective changes
+    @SerializedName("corrective_change") private Integer correctiveChange;
+
+    public int getFailed() {
+      return this.failed;
+    }
+
+    public int getChanged() {
+      return this.changed;
+    }
+
+    public int getSkipped() {
+      return this.skipped;
+    }
+
+    public int getTotal() {
+      return this.total;
+    }
+
+    public Integer getCorrectiveChange() {
+      return this.correctiveChange;
+    }
+  }
+
+  /**
+   * A page of node results.
+   */
+  public static class Page {
+    private List<JobNode> items;
+
+    public List<JobNode> getItems() {
+      return this.items;
+    }
+  }
+}
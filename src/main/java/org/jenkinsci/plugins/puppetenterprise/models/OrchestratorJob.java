@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.util.List;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * An orchestrator job as returned by /orchestrator/v1/jobs/:id.
+ */
+public class OrchestratorJob {
+  private String id;
+  private String name;
+  private String state;
+  @SerializedName("node_count") private int nodeCount;
+  private Environment environment;
+  private List<Status> status;
+
+  public String getId() {
+    return this.id;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public int getNodeCount() {
+    return this.nodeCount;
+  }
+
+  public String getEnvironmentName() {
+    return this.environment == null ? null : this.environment.name;
+  }
+
+  /**
+   * The most recent state in the job's status history, falling back to the
+   * job's state field.
+   */
+  public String getLatestState() {
+    if (this.status != null && !this.status.isEmpty()) {
+      return this.status.get(this.status.size() - 1).state;
+    }
+
+    return this.state;
+  }
+
+  public static class Environment {
+    private String name;
+  }
+
+  public static class Status {
+    private String state;
+    @SerializedName("enter_time") private String enterTime;
+    @SerializedName("exit_time") private String exitTime;
+  }
+}
@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.internal.LinkedTreeMap;
+import com.google.gson.stream.JsonReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+
+import org.jenkinsci.plugins.puppetenterprise.http.LimitedInputStream;
+import org.jenkinsci.plugins.puppetenterprise.http.PEGson;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandler;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
+import org.jenkinsci.plugins.puppetenterprise.http.PETransport;
+import org.jenkinsci.plugins.puppetenterprise.http.ResponseTooLargeException;
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * Calls the Puppet Enterprise APIs of the configured master with an RBAC
+ * token, over the shared transport. Steps call it through their request
+ * methods; background work that has no step, such as refreshing the
+ * inventory index, calls it directly.
+ */
+public final class PEClient {
+  private static final Logger logger = Logger.getLogger(PEClient.class.getName());
+
+  /**
+   * Largest response read when the caller doesn't set a limit.
+   */
+  public static final long DEFAULT_MAX_RESPONSE_BYTES = 256L * 1024 * 1024;
+
+  private PEClient() { }
+
+  public static PEResponse request(String token, String endpoint, Integer port, String method, Map body) throws Exception {
+    return request(token, endpoint, port, method, body, PEResponseHandlers.tree(), DEFAULT_MAX_RESPONSE_BYTES);
+  }
+
+  /**
+   * Calls a Puppet Enterprise API. Successful JSON responses are decoded by
+   * the handler directly from the response stream. Error responses are read
+   * whole so their message can be reported.
+   */
+  public static PEResponse request(String token, String endpoint, Integer port, String method, Map body, PEResponseHandler<?> handler, long maxResponseBytes) throws Exception {
+    Gson gson = PEGson.get();
+    Object responseBody = null;
+    PEResponse peResponse = null;
+    PETransport.Lease lease = null;
+
+    if (PuppetEnterpriseConfig.getPuppetMasterUrl() == null || PuppetEnterpriseConfig.getPuppetMasterUrl().isEmpty()) {
+      String message = "The Puppet Enterprise master address has not been configured yet. Configure the Puppet Enterprise page under Manage Jenkins.";
+      logger.log(Level.SEVERE, message);
+      throw new Exception(message);
+    }
+
+    try {
+      lease = PETransport.acquire(PuppetEnterpriseConfig.getPuppetMasterUrl(),
+        PuppetEnterpriseConfig.getPuppetMasterCACertificate());
+    } catch(IOException e) {
+      logger.log(Level.SEVERE, e.getMessage());
+      throw new Exception(e.getMessage());
+    }
+
+    HttpClient httpClient = lease.getHttpClient();
+    HttpResponse response = null;
+
+    try {
+
+      if (method.equals("POST")) {
+        HttpPost request = new HttpPost("https://" + PuppetEnterpriseConfig.getPuppetMasterUrl() + ":" + port + endpoint);
+
+        if (body != null) {
+          request.addHeader("content-type", "application/json");
+          request.addHeader("X-Authentication", token);
+          StringEntity requestJson = new StringEntity(gson.toJson(body));
+          request.setEntity(requestJson);
+        }
+        response = httpClient.execute(request);
+      }
+
+      if (method.equals("GET")) {
+        HttpGet request = new HttpGet("https://" + PuppetEnterpriseConfig.getPuppetMasterUrl() + ":" + port + endpoint);
+        request.addHeader("X-Authentication", token);
+        response = httpClient.execute(request);
+      }
+
+      Integer responseCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+
+      if (entity == null) {
+        return new PEResponse(null, responseCode);
+      }
+
+      InputStream content = new LimitedInputStream(entity.getContent(), maxResponseBytes);
+
+      if (responseCode < 200 || responseCode >= 300 || !isJson(entity)) {
+        String json = IOUtils.toString(content, StandardCharsets.UTF_8);
+
+        try {
+          responseBody = gson.fromJson(json, Object.class);
+        } catch(JsonSyntaxException e) {
+          logger.log(Level.SEVERE, e.getMessage());
+
+          LinkedTreeMap errorContent = new LinkedTreeMap();
+          errorContent.put("error", json);
+          return new PEResponse(errorContent, responseCode);
+        }
+
+        return new PEResponse(responseBody, responseCode);
+      }
+
+      JsonReader reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+      reader.setLenient(true);
+
+      try {
+        reader.peek();
+        responseBody = handler.handle(reader);
+      } catch(EOFException e) {
+        // An empty body decodes to null, the same as Gson.fromJson
+        responseBody = null;
+      }
+
+      // Handlers stop after the JSON value they read. The connection only
+      // goes back to the shared pool once the body is read to its end;
+      // closing a response that is not fully read closes the connection.
+      IOUtils.copy(content, NullOutputStream.NULL_OUTPUT_STREAM);
+
+      peResponse = new PEResponse(responseBody, responseCode);
+
+    } catch(ResponseTooLargeException e) {
+      throw new PEException(e.getMessage());
+    } catch(IOException e) {
+      throw new PEException("Error calling the Puppet Enterprise API at " + endpoint + ": " + e.getMessage());
+    } finally {
+      // Returns a fully read response's connection to the pool, and closes
+      // the connection of one that failed part way through
+      try {
+        if (response instanceof CloseableHttpResponse) {
+          ((CloseableHttpResponse) response).close();
+        }
+      } finally {
+        lease.close();
+      }
+    }
+
+    return peResponse;
+  }
+
+  private static boolean isJson(HttpEntity entity) {
+    Header contentType = entity.getContentType();
+    return contentType == null || contentType.getValue().toLowerCase(Locale.ENGLISH).contains("json");
+  }
+}
@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * How often to poll a long running Puppet Enterprise job for its status.
+ *
+ * Polling starts at the initial interval and backs off exponentially up to
+ * the maximum interval. A random jitter keeps many pipelines from polling
+ * in lock step, and callers reset to the initial interval whenever the job
+ * changes state.
+ */
+public final class PollingPolicy implements Serializable {
+  public static final long DEFAULT_INITIAL_INTERVAL = 500;
+  public static final long DEFAULT_MAX_INTERVAL = 30000;
+  public static final double DEFAULT_MULTIPLIER = 1.5;
+  public static final double DEFAULT_JITTER = 0.2;
+
+  private static final Random random = new Random();
+
+  private final long initialInterval;
+  private final long maxInterval;
+  private final double multiplier;
+  private final double jitter;
+
+  public PollingPolicy(long initialInterval, long maxInterval, double multiplier, double jitter) {
+    this.initialInterval = Math.max(1, initialInterval);
+    this.maxInterval = Math.max(this.initialInterval, maxInterval);
+    this.multiplier = Math.max(1.0, multiplier);
+    this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+  }
+
+  public static PollingPolicy defaults() {
+    return new PollingPolicy(DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+  }
+
+  /**
+   * Returns a copy of this policy with the given intervals replaced. Null
+   * values keep the intervals of this policy.
+   */
+  public PollingPolicy withIntervals(Integer initial, Integer max) {
+    long newInitial = initial == null ? this.initialInterval : initial.longValue();
+    long newMax = max == null ? this.maxInterval : max.longValue();
+
+    return new PollingPolicy(newInitial, newMax, this.multiplier, this.jitter);
+  }
+
+  /**
+   * The un-jittered interval to use after the given one.
+   */
+  public long nextInterval(long currentInterval) {
+    return Math.min(this.maxInterval, (long) Math.ceil(currentInterval * this.multiplier));
+  }
+
+  /**
+   * The given interval with random jitter applied, never below one millisecond.
+   */
+  public long jittered(long interval) {
+    if (this.jitter == 0.0) {
+      return interval;
+    }
+
+    double offset = (random.nextDouble() * 2.0 - 1.0) * this.jitter * interval;
+    return Math.max(1, Math.round(interval + offset));
+  }
+
+  public long getInitialInterval() {
+    return this.initialInterval;
+  }
+
+  public long getMaxInterval() {
+    return this.maxInterval;
+  }
+
+  public double getMultiplier() {
+    return this.multiplier;
+  }
+
+  public double getJitter() {
+    return this.jitter;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
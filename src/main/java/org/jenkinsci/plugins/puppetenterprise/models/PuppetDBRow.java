@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.internal.LinkedTreeMap;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.jenkinsci.plugins.puppetenterprise.http.PEGson;
+
+/**
+ * One row of a PuppetDB query result, such as a node, fact or inventory
+ * row. The certname and timestamp most rows carry are read when the row is
+ * decoded; every other field keeps the shape Gson gives untyped JSON.
+ *
+ * Rows are written back out as the plain JSON object they were read from,
+ * so files holding rows read the same with or without this model.
+ */
+@JsonAdapter(PuppetDBRow.Adapter.class)
+public final class PuppetDBRow {
+
+  /**
+   * A result array, for PEResponseHandlers.typed.
+   */
+  public static final Type LIST = new TypeToken<ArrayList<PuppetDBRow>>() { }.getType();
+
+  private final LinkedTreeMap<String, Object> fields;
+  private final String certname;
+  private final String timestamp;
+
+  private PuppetDBRow(LinkedTreeMap<String, Object> fields) {
+    this.fields = fields;
+    this.certname = stringField(fields, "certname");
+    this.timestamp = stringField(fields, "timestamp");
+  }
+
+  public String getCertname() {
+    return this.certname;
+  }
+
+  /**
+   * When PuppetDB last changed the row, or null if it has no timestamp.
+   */
+  public String getTimestamp() {
+    return this.timestamp;
+  }
+
+  public Object get(String field) {
+    return this.fields.get(field);
+  }
+
+  /**
+   * The value at a dotted path into the row, such as "facts.os.family", or
+   * null if any part of the path is missing.
+   */
+  public Object getPath(String[] segments) {
+    Object value = this.fields;
+    for (String segment : segments) {
+      value = value instanceof Map ? ((Map) value).get(segment) : null;
+    }
+    return value;
+  }
+
+  /**
+   * A copy of the row for a pipeline, so it can't change the row itself.
+   */
+  public LinkedTreeMap toMap() {
+    return (LinkedTreeMap) PEGson.get().fromJson(PEGson.get().toJson(this.fields), Object.class);
+  }
+
+  public static ArrayList<LinkedTreeMap> toMaps(List<PuppetDBRow> rows) {
+    ArrayList<LinkedTreeMap> maps = new ArrayList<LinkedTreeMap>(rows.size());
+    for (PuppetDBRow row : rows) {
+      maps.add(row.toMap());
+    }
+    return maps;
+  }
+
+  private static String stringField(Map<String, Object> fields, String name) {
+    Object value = fields.get(name);
+    return value instanceof String ? (String) value : null;
+  }
+
+  static final class Adapter extends TypeAdapter<PuppetDBRow> {
+    @Override public void write(JsonWriter out, PuppetDBRow row) throws IOException {
+      if (row == null) {
+        out.nullValue();
+        return;
+      }
+
+      PEGson.get().getAdapter(Object.class).write(out, row.fields);
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public PuppetDBRow read(JsonReader in) throws IOException {
+      Object value = PEGson.get().getAdapter(Object.class).read(in);
+
+      if (value == null) {
+        return null;
+      }
+
+      if (!(value instanceof LinkedTreeMap)) {
+        throw new IOException("Expected a PuppetDB result row, got " + value);
+      }
+
+      return new PuppetDBRow((LinkedTreeMap<String, Object>) value);
+    }
+  }
+}
@@ -25,9 +25,16 @@ import org.apache.http.impl.client.*;
 import org.apache.http.conn.ssl.*;
 import org.apache.commons.io.IOUtils;
 
+import org.jenkinsci.plugins.puppetenterprise.http.PETrustMaterial;
+
 public final class PuppetEnterpriseConfig implements Serializable {
+  public static final long DEFAULT_HIERA_FLUSH_DELAY = 1000;
+
   private static String puppetMasterUrl = null;
   private static String puppetMasterCACertificate = "";
+  private static PollingPolicy pollingPolicy = PollingPolicy.defaults();
+  private static String hieraDurability = HieraConfig.DURABILITY_SYNC;
+  private static long hieraFlushDelay = DEFAULT_HIERA_FLUSH_DELAY;
 
   static {
     loadGlobalConfig();
@@ -51,17 +58,64 @@ public final class PuppetEnterpriseConfig implements Serializable {
       puppetMasterCACertificate = retrievePuppetMasterCACertificate();
     }
 
+    PETrustMaterial.invalidate();
+
     save();
   }
 
   public static void setPuppetMasterCACertificate(String cert) {
     puppetMasterCACertificate = cert;
+    PETrustMaterial.invalidate();
 
     try {
       save();
     } catch(IOException e) {e.printStackTrace();}
   }
 
+  public static PollingPolicy getPollingPolicy() {
+    return pollingPolicy;
+  }
+
+  public static void setPollingPolicy(PollingPolicy policy) throws IOException {
+    pollingPolicy = policy;
+    save();
+  }
+
+  /**
+   * When changes to the Hiera store are written to disk. One of the
+   * HieraConfig.DURABILITY_* values.
+   */
+  public static String getHieraDurability() {
+    return hieraDurability;
+  }
+
+  /**
+   * Milliseconds a change to the Hiera store may wait before it is written
+   * to disk, with delayed durability.
+   */
+  public static long getHieraFlushDelay() {
+    return hieraFlushDelay;
+  }
+
+  public static void setHieraPersistence(String durability, long flushDelay) throws IOException {
+    if (!HieraConfig.DURABILITY_SYNC.equals(durability)
+        && !HieraConfig.DURABILITY_DELAYED.equals(durability)
+        && !HieraConfig.DURABILITY_ON_SHUTDOWN.equals(durability)) {
+      throw new IllegalArgumentException("Unknown Hiera durability '" + durability + "'");
+    }
+
+    boolean changed = !durability.equals(hieraDurability);
+
+    hieraDurability = durability;
+    hieraFlushDelay = Math.max(0, flushDelay);
+    save();
+
+    // Write out anything the previous durability was still holding back
+    if (changed) {
+      HieraConfig.save();
+    }
+  }
+
   public static String getPuppetMasterCACertificate() {
     return puppetMasterCACertificate;
   }
@@ -99,6 +153,20 @@ public final class PuppetEnterpriseConfig implements Serializable {
 
         puppetMasterUrl = (String) config.get("puppetMasterUrl");
         puppetMasterCACertificate = (String) config.get("puppetMasterCACertificate");
+        PETrustMaterial.invalidate();
+
+        if (config.get("pollInitialInterval") != null) {
+          pollingPolicy = new PollingPolicy(
+            (Long) config.get("pollInitialInterval"),
+            (Long) config.get("pollMaxInterval"),
+            (Double) config.get("pollMultiplier"),
+            (Double) config.get("pollJitter"));
+        }
+
+        if (config.get("hieraDurability") != null) {
+          hieraDurability = (String) config.get("hieraDurability");
+          hieraFlushDelay = (Long) config.get("hieraFlushDelay");
+        }
       }
     } catch (IOException e) {
       e.printStackTrace();
@@ -182,6 +250,12 @@ public final class PuppetEnterpriseConfig implements Serializable {
     HashMap config = new HashMap();
     config.put("puppetMasterUrl", puppetMasterUrl);
     config.put("puppetMasterCACertificate", puppetMasterCACertificate);
+    config.put("pollInitialInterval", pollingPolicy.getInitialInterval());
+    config.put("pollMaxInterval", pollingPolicy.getMaxInterval());
+    config.put("pollMultiplier", pollingPolicy.getMultiplier());
+    config.put("pollJitter", pollingPolicy.getJitter());
+    config.put("hieraDurability", hieraDurability);
+    config.put("hieraFlushDelay", hieraFlushDelay);
 
     getConfigFile().write(config);
   }
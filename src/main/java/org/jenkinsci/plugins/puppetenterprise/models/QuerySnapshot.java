@@ -0,0 +1,287 @@
+package org.jenkinsci.plugins.puppetenterprise.models;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.AtomicFileWriter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.internal.LinkedTreeMap;
+
+import org.jenkinsci.plugins.puppetenterprise.http.PEGson;
+import org.jenkinsci.plugins.puppetenterprise.http.PuppetDBQueryCache;
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * The merged results of an incremental PuppetDB query, persisted in the
+ * job's directory between builds.
+ *
+ * Each build only asks PuppetDB for rows whose watermark field is at or past
+ * the highest value seen so far, and merges them into the snapshot by their
+ * key field. Rows for nodes that disappear from PuppetDB are never removed.
+ */
+public final class QuerySnapshot {
+  private static final Logger logger = Logger.getLogger(QuerySnapshot.class.getName());
+
+  private static final String SNAPSHOT_DIR = "puppet-query-snapshots";
+
+  // Snapshots share a fixed set of locks, so the set doesn't grow with every query ever run
+  private static final Object[] locks = new Object[64];
+
+  // UTC timestamps as PuppetDB writes them, such as 2016-12-09T18:47:41.195Z
+  private static final Pattern TIMESTAMP = Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(?:\\.(\\d{1,9}))?Z");
+
+  // Clauses that would apply to the changed rows rather than the whole snapshot
+  private static final Pattern PAGING = Pattern.compile("\\b(limit|offset|order\\s+by|group\\s+by)\\b", Pattern.CASE_INSENSITIVE);
+
+  static {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  @SerializedName("watermark_field")
+  private String watermarkField;
+
+  @SerializedName("key_field")
+  private String keyField;
+
+  private String watermark;
+
+  private LinkedHashMap<String, PuppetDBRow> rows = new LinkedHashMap<String, PuppetDBRow>();
+
+  private transient File file;
+
+  private QuerySnapshot() { }
+
+  /**
+   * Lock to hold while loading, merging and saving the snapshot of the given
+   * query, so concurrent builds of a job don't lose each other's rows.
+   */
+  public static Object lockFor(File jobDir, String query) {
+    String path = snapshotFile(jobDir, query).getAbsolutePath();
+    return locks[(path.hashCode() & 0x7fffffff) % locks.length];
+  }
+
+  /**
+   * Loads the snapshot of the given query, or starts an empty one. A
+   * snapshot taken with a different watermark or key field is discarded.
+   */
+  public static QuerySnapshot load(File jobDir, String query, String watermarkField, String keyField) throws IOException {
+    File file = snapshotFile(jobDir, query);
+    QuerySnapshot snapshot = null;
+
+    if (file.exists()) {
+      Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+      try {
+        snapshot = PEGson.get().fromJson(reader, QuerySnapshot.class);
+      } catch(RuntimeException e) {
+        logger.log(Level.WARNING, "Discarding unreadable PuppetDB query snapshot " + file, e);
+      } finally {
+        reader.close();
+      }
+    }
+
+    if (snapshot == null || !watermarkField.equals(snapshot.watermarkField) || !keyField.equals(snapshot.keyField)) {
+      snapshot = new QuerySnapshot();
+      snapshot.watermarkField = watermarkField;
+      snapshot.keyField = keyField;
+    }
+
+    if (snapshot.rows == null) {
+      snapshot.rows = new LinkedHashMap<String, PuppetDBRow>();
+    }
+
+    snapshot.file = file;
+    return snapshot;
+  }
+
+  /**
+   * Adds the watermark bound to the query's filter. The first build of a
+   * snapshot runs the query as given.
+   *
+   * The filter is the brace block of the outermost query, found by skipping
+   * string literals and matching nested braces, so subqueries and braces in
+   * strings are left alone. Queries with paging or grouping clauses are
+   * rejected, since those would apply to the changed rows only.
+   */
+  public String boundQuery(String query) throws PEException {
+    int open = -1;
+    int close = -1;
+    int depth = 0;
+    StringBuilder topLevel = new StringBuilder();
+
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+
+      if (c == '"') {
+        i = skipString(query, i);
+        topLevel.append(' ');
+        continue;
+      }
+
+      if (c == '{' || c == '(' || c == '[') {
+        if (c == '{' && depth == 0) {
+          if (open >= 0) {
+            throw new PEException("Incremental queries must have a single filter in braces");
+          }
+          open = i;
+        }
+        depth++;
+      } else if (c == '}' || c == ')' || c == ']') {
+        depth--;
+        if (depth < 0) {
+          throw new PEException("Unbalanced brackets in incremental query: " + query);
+        }
+        if (c == '}' && depth == 0) {
+          close = i;
+        }
+      } else if (depth == 1 && open >= 0 && close < 0) {
+        topLevel.append(c);
+      }
+
+      if (depth == 1 && (c == '(' || c == '[' || c == ')' || c == ']')) {
+        topLevel.append(' ');
+      }
+    }
+
+    if (depth != 0) {
+      throw new PEException("Unbalanced brackets in incremental query: " + query);
+    }
+
+    if (open < 0 || close < 0) {
+      throw new PEException("Incremental queries need a filter in braces, such as 'nodes[certname, producer_timestamp] {}'");
+    }
+
+    if (!query.substring(close + 1).trim().isEmpty()) {
+      throw new PEException("Incremental queries must end with their filter in braces: " + query);
+    }
+
+    Matcher paging = PAGING.matcher(topLevel);
+    if (paging.find()) {
+      throw new PEException("Incremental queries can't use " + paging.group(1).replaceAll("\\s+", " ") + ", since it would only apply to the changed rows");
+    }
+
+    if (watermark == null) {
+      return query;
+    }
+
+    String filter = query.substring(open + 1, close).trim();
+    String bound = watermarkField + " >= " + PEGson.get().toJson(watermark);
+
+    if (!filter.isEmpty()) {
+      bound = "(" + filter + ") and " + bound;
+    }
+
+    return query.substring(0, open + 1) + " " + bound + " " + query.substring(close);
+  }
+
+  /**
+   * Merges changed rows into the snapshot and advances the watermark. The
+   * watermark field must hold ISO 8601 UTC timestamps; anything else is
+   * rejected rather than compared wrongly.
+   */
+  public void merge(List<PuppetDBRow> changed) throws PEException {
+    for (PuppetDBRow row : changed) {
+      Object key = row.get(keyField);
+      Object mark = row.get(watermarkField);
+
+      if (key == null || mark == null) {
+        throw new PEException("Incremental query results must include the " + keyField + " and " + watermarkField + " fields");
+      }
+
+      rows.remove(String.valueOf(key));
+      rows.put(String.valueOf(key), row);
+
+      String value = String.valueOf(mark);
+      if (watermark == null || sortable(value).compareTo(sortable(watermark)) > 0) {
+        watermark = value;
+      }
+    }
+  }
+
+  // Pads the fraction of a second, so timestamps with different precision
+  // sort as strings in time order.
+  private String sortable(String timestamp) throws PEException {
+    Matcher match = TIMESTAMP.matcher(timestamp);
+
+    if (!match.matches()) {
+      throw new PEException("Incremental watermark field " + watermarkField + " must hold UTC timestamps such as 2016-12-09T18:47:41.195Z, not " + timestamp);
+    }
+
+    String fraction = match.group(1) == null ? "" : match.group(1);
+    return timestamp.substring(0, 19) + "." + (fraction + "000000000").substring(0, 9);
+  }
+
+  /**
+   * Index of the quote closing the PQL string literal that opens at start.
+   */
+  private static int skipString(String query, int start) throws PEException {
+    for (int i = start + 1; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i;
+      }
+    }
+
+    throw new PEException("Unterminated string in incremental query: " + query);
+  }
+
+  public void save() throws IOException {
+    file.getParentFile().mkdirs();
+
+    AtomicFileWriter writer = new AtomicFileWriter(file);
+    try {
+      PEGson.get().toJson(this, writer);
+      writer.commit();
+    } finally {
+      writer.abort();
+    }
+  }
+
+  public String getWatermark() {
+    return watermark;
+  }
+
+  public int size() {
+    return rows.size();
+  }
+
+  /**
+   * Every row of the snapshot, in the order they were last changed.
+   */
+  public ArrayList<LinkedTreeMap> getRows() {
+    return PuppetDBRow.toMaps(new ArrayList<PuppetDBRow>(rows.values()));
+  }
+
+  private static File snapshotFile(File jobDir, String query) {
+    return new File(new File(jobDir, SNAPSHOT_DIR), digest(PuppetDBQueryCache.normalize(query)) + ".json");
+  }
+
+  private static String digest(String text) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 16; i++) {
+        hex.append(String.format("%02x", hash[i]));
+      }
+      return hex.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
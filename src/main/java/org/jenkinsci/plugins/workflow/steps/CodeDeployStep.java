@@ -5,22 +5,35 @@ import com.google.inject.Inject;
 import hudson.Extension;
 import hudson.Util;
 import hudson.util.ListBoxModel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.security.ACL;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.apache.commons.lang.StringUtils;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.Item;
 import hudson.model.TaskListener;
 import jenkins.model.Jenkins;
 import javax.annotation.Nonnull;
+import java.lang.reflect.Type;
 import com.google.gson.internal.LinkedTreeMap;
+import com.google.gson.reflect.TypeToken;
 
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.jenkinsci.plugins.plaincredentials.*;
 import org.apache.commons.lang.StringUtils;
@@ -41,61 +54,535 @@ import java.io.InputStreamReader;
 
 import org.jenkinsci.plugins.puppetenterprise.PuppetEnterpriseManagement;
 import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.puppetenterprise.models.CodeDeployResult;
+import org.jenkinsci.plugins.puppetenterprise.models.CodeDeployStatus;
+import org.jenkinsci.plugins.puppetenterprise.models.CodeDeployHistory;
+import org.jenkinsci.plugins.puppetenterprise.models.CodeDeployCoalescer;
+import org.jenkinsci.plugins.puppetenterprise.models.PollingPolicy;
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
+import org.jenkinsci.plugins.puppetenterprise.http.PEScheduler;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
 import org.jenkinsci.plugins.workflow.PEException;
 
 public final class CodeDeployStep extends PuppetEnterpriseStep implements Serializable {
 
   private static final Logger logger = Logger.getLogger(CodeDeployStep.class.getName());
 
+  private static final Type DEPLOY_RESULTS_TYPE = new TypeToken<List<CodeDeployResult>>() { }.getType();
+
+  public static final int DEFAULT_PARALLELISM = 4;
+
   private String environment = "";
+  private ArrayList environments = new ArrayList();
+  private Integer batchSize = null;
+  private Integer parallelism = DEFAULT_PARALLELISM;
+  private Boolean async = false;
+  private String commit = null;
 
   @DataBoundSetter private void setEnvironment(String environment) {
     this.environment = Util.fixEmpty(environment);
   }
 
+  @DataBoundSetter private void setEnvironments(ArrayList environments) {
+    this.environments = environments;
+  }
+
+  @DataBoundSetter private void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  @DataBoundSetter private void setParallelism(Integer parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  @DataBoundSetter private void setAsync(Boolean async) {
+    this.async = async;
+  }
+
+  @DataBoundSetter private void setCommit(String commit) {
+    this.commit = Util.fixEmpty(commit);
+  }
+
   public String getEnvironment() {
     return this.environment;
   }
 
+  public ArrayList getEnvironments() {
+    return this.environments;
+  }
+
+  /**
+   * Environments to deploy in one Code Manager request. Unset deploys every
+   * environment in a single request.
+   */
+  public Integer getBatchSize() {
+    return this.batchSize;
+  }
+
+  /**
+   * How many batches to deploy at once.
+   */
+  public Integer getParallelism() {
+    return this.parallelism;
+  }
+
+  /**
+   * Queue the deploys without holding a request open, and track them through
+   * Code Manager's deploy status endpoint instead.
+   */
+  public Boolean getAsync() {
+    return this.async;
+  }
+
+  /**
+   * The control repo commit the environments should be at. Environments
+   * whose last successful deploy was of this commit are not deployed again.
+   */
+  public String getCommit() {
+    return this.commit;
+  }
+
+  /**
+   * The environment and environments parameters combined, without duplicates.
+   */
+  public List<String> getEnvironmentList() {
+    LinkedHashSet<String> all = new LinkedHashSet<String>();
+
+    if (this.environment != null) {
+      all.add(this.environment);
+    }
+
+    if (this.environments != null) {
+      for (Object env : this.environments) {
+        if (env != null && !String.valueOf(env).isEmpty()) {
+          all.add(String.valueOf(env));
+        }
+      }
+    }
+
+    return new ArrayList<String>(all);
+  }
+
   @DataBoundConstructor public CodeDeployStep() { }
 
-  public static class CodeDeployStepExecution extends AbstractSynchronousStepExecution<Void> {
+  public static class CodeDeployStepExecution extends AbstractStepExecutionImpl {
 
-    @Inject private transient CodeDeployStep step;
+    @Inject private CodeDeployStep step;
     @StepContextParameter private transient Run<?, ?> run;
     @StepContextParameter private transient TaskListener listener;
 
-    @Override protected Void run() throws Exception {
+    // Asynchronous deploys still being tracked, by environment
+    private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, LinkedHashMap> finished = new ConcurrentHashMap<String, LinkedHashMap>();
+    private volatile long submittedAt = 0;
+    private volatile long pollInterval = 0;
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private transient volatile Future<?> task = null;
+
+    @Override public boolean start() throws Exception {
+      if (step.getEnvironmentList().isEmpty()) {
+        throw new PEException("No Puppet environment given to deploy", listener);
+      }
+
+      final List<String> environments = skipUnchanged();
+
+      if (environments.isEmpty()) {
+        succeed(report(finished));
+      } else if (step.getAsync()) {
+        schedule(new Runnable() {
+          @Override public void run() {
+            try {
+              submitDeploys(environments);
+            } catch(Exception e) {
+              fail(e);
+            }
+          }
+        }, 0);
+      } else {
+        // A waiting deploy holds its thread for the whole deploy, so it runs
+        // on Jenkins' shared pool rather than the small polling scheduler.
+        task = Computer.threadPoolForRemoting.submit(new Runnable() {
+          @Override public void run() {
+            try {
+              HashMap<String, LinkedHashMap> deployed = deployAndWait(environments);
+              deployed.putAll(finished);
+              succeed(report(deployed));
+            } catch(Exception e) {
+              fail(e);
+            }
+          }
+        });
+      }
+
+      return false;
+    }
+
+    /**
+     * Records environments already deployed at the requested commit as
+     * skipped, and returns the environments that still need deploying.
+     */
+    private List<String> skipUnchanged() throws Exception {
+      List<String> environments = new ArrayList<String>();
+      String master = PuppetEnterpriseConfig.getPuppetMasterUrl();
+
+      for (String env : step.getEnvironmentList()) {
+        if (step.getCommit() != null && step.getCommit().equals(CodeDeployHistory.getLastSignature(master, env))) {
+          getListener().getLogger().println("Skipping deploy of [" + env + "], it is already at commit " + step.getCommit());
+
+          LinkedHashMap skipped = new LinkedHashMap();
+          skipped.put("status", "skipped");
+          skipped.put("signature", step.getCommit());
+          skipped.put("duration", 0L);
+          finished.put(env, skipped);
+        } else {
+          environments.add(env);
+        }
+      }
+
+      return environments;
+    }
+
+    @Override public void stop(@Nonnull Throwable cause) throws Exception {
+      Future<?> current = task;
+      if (current != null) {
+        current.cancel(true);
+      }
+
+      fail(cause);
+    }
+
+    // The step is persisted with the execution, so there is nothing to
+    // re-inject here. Re-injecting would replace it with an empty step.
+    @Override public void onResume() {
+      if (step.getAsync() && submittedAt > 0) {
+        pollInterval = PuppetEnterpriseConfig.getPollingPolicy().getInitialInterval();
+        schedulePoll(0);
+      } else {
+        fail(new PEException("Jenkins restarted while Puppet code was deploying. The deploy status is unknown."));
+      }
+    }
+
+    /**
+     * Deploys the environments and waits for them, sharing deploys with other
+     * builds deploying the same environments at the same time.
+     */
+    private HashMap<String, LinkedHashMap> deployAndWait(List<String> environments) throws Exception {
+      CodeDeployCoalescer.Deployer deployer = new CodeDeployCoalescer.Deployer() {
+        @Override public Map<String, LinkedHashMap> deploy(List<String> envs) throws Exception {
+          return deployInBatches(envs);
+        }
+
+        @Override public void log(String message) {
+          try {
+            getListener().getLogger().println(message);
+          } catch(Exception e) {
+            logger.log(Level.FINE, "Could not log to the build: " + e.getMessage());
+          }
+        }
+      };
+
+      LinkedHashMap<String, CodeDeployCoalescer.Deploy> deploys =
+        CodeDeployCoalescer.deploy(PuppetEnterpriseConfig.getPuppetMasterUrl(), step.getToken(), environments, deployer);
+
+      for (Map.Entry<String, CodeDeployCoalescer.Deploy> deploy : deploys.entrySet()) {
+        if (!deploy.getValue().isRequestedBy(deployer)) {
+          getListener().getLogger().println("Another build is already waiting to deploy [" + deploy.getKey() + "]. Sharing its deploy.");
+        }
+      }
+
+      HashMap<String, LinkedHashMap> deployed = new HashMap<String, LinkedHashMap>();
+      for (Map.Entry<String, CodeDeployCoalescer.Deploy> deploy : deploys.entrySet()) {
+        deployed.put(deploy.getKey(), deploy.getValue().await(deployer));
+      }
+
+      return deployed;
+    }
+
+    private HashMap<String, LinkedHashMap> deployInBatches(List<String> environments) throws Exception {
+      int batchSize = step.getBatchSize() == null || step.getBatchSize() < 1 ? environments.size() : step.getBatchSize();
+      List<List<String>> batches = new ArrayList<List<String>>();
+      for (int i = 0; i < environments.size(); i += batchSize) {
+        batches.add(environments.subList(i, Math.min(i + batchSize, environments.size())));
+      }
+
+      HashMap<String, LinkedHashMap> deployed = new HashMap<String, LinkedHashMap>();
+
+      if (batches.size() == 1) {
+        deployed.putAll(deployBatch(batches.get(0)));
+      } else {
+        deployed.putAll(deployBatches(batches));
+      }
+
+      return deployed;
+    }
+
+    /**
+     * Logs each environment's result in the order the environments were
+     * given, and fails naming just the environments that failed.
+     */
+    private LinkedHashMap report(Map<String, LinkedHashMap> deployed) throws Exception {
+      TaskListener listener = getListener();
+      String master = PuppetEnterpriseConfig.getPuppetMasterUrl();
+      LinkedHashMap<String, LinkedHashMap> results = new LinkedHashMap<String, LinkedHashMap>();
+      ArrayList<String> failures = new ArrayList<String>();
+
+      for (String env : step.getEnvironmentList()) {
+        LinkedHashMap result = deployed.get(env);
+        results.put(env, result);
+
+        if ("failed".equals(result.get("status"))) {
+          failures.add(env + ": " + result.get("error"));
+        } else if (!"skipped".equals(result.get("status"))) {
+          if ("complete".equals(result.get("status"))) {
+            CodeDeployHistory.record(master, env, (String) result.get("signature"));
+          }
+
+          listener.getLogger().println("Successfully deployed [" + env + "] Puppet environment code.");
+          logger.log(Level.INFO, "Successfully deployed [" + env + "] Puppet environment code.");
+        }
+      }
+
+      if (!failures.isEmpty()) {
+        String error = StringUtils.join(failures, "\n");
+        logger.log(Level.SEVERE, error);
+        throw new PEException(error, listener);
+      }
+
+      return results;
+    }
+
+    /**
+     * Queues every environment with Code Manager without waiting, then
+     * tracks the deploys through the deploy status endpoint.
+     */
+    private void submitDeploys(List<String> environments) throws Exception {
       LinkedTreeMap body = new LinkedTreeMap();
-      ArrayList environments = new ArrayList();
-      environments.add(step.getEnvironment());
+      body.put("wait", false);
+      body.put("environments", new ArrayList<String>(environments));
 
-      body.put("wait", true);
-      body.put("environments", environments);
+      PEResponse result = step.request("/code-manager/v1/deploys", 8170, "POST", body,
+        PEResponseHandlers.typed(DEPLOY_RESULTS_TYPE));
 
-      PEResponse result = step.request("/code-manager/v1/deploys", 8170, "POST", body);
+      if (result.getResponseCode() < 200 || result.getResponseCode() >= 300 || !(result.getResponseBody() instanceof List)) {
+        String error = String.valueOf(result.getResponseBody());
+        logger.log(Level.SEVERE, error);
+        throw new PEException(error, result.getResponseCode(), getListener());
+      }
 
-      if (!step.isSuccessful(result)) {
-        LinkedTreeMap error = null;
+      submittedAt = System.currentTimeMillis();
 
-        // If we get a hash back, it usually means a problem with authentication.
-        // Otherwise, it's an error from deploying the enviornment code.
-        if (result.getResponseBody() instanceof LinkedTreeMap ) {
-          error = (LinkedTreeMap) result.getResponseBody();
+      for (CodeDeployResult envResult : (List<CodeDeployResult>) result.getResponseBody()) {
+        if (envResult.isFailed()) {
+          finished.put(envResult.getEnvironment(), toMap(envResult, 0));
         } else {
-          ArrayList envResults = (ArrayList) result.getResponseBody();
-          LinkedTreeMap firstHash = (LinkedTreeMap) envResults.get(0);
-          error = (LinkedTreeMap) firstHash.get("error");
+          pending.put(envResult.getEnvironment(), envResult.getId());
         }
+      }
 
-        logger.log(Level.SEVERE, error.toString());
-        throw new PEException(error.toString(), result.getResponseCode(), listener);
-      } else {
-        listener.getLogger().println("Successfully deployed " + environments + " Puppet environment code.");
-        logger.log(Level.INFO, "Successfully deployed " + environments + " Puppet environment code.");
+      for (String env : environments) {
+        if (!pending.containsKey(env) && !finished.containsKey(env)) {
+          finished.put(env, failedResult("Code Manager did not report a result for the environment", 0));
+        }
+      }
+
+      getListener().getLogger().println("Queued Puppet code deploy of " + environments);
+
+      if (pending.isEmpty()) {
+        succeed(report(finished));
+        return;
+      }
+
+      pollInterval = PuppetEnterpriseConfig.getPollingPolicy().getInitialInterval();
+      schedulePoll(PuppetEnterpriseConfig.getPollingPolicy().jittered(pollInterval));
+    }
+
+    private void pollDeploys() throws Exception {
+      PEResponse result = step.request("/code-manager/v1/deploys/status", 8170, "GET", null,
+        PEResponseHandlers.typed(CodeDeployStatus.class));
+
+      if (result.getResponseCode() == 404) {
+        throw new PEException("This version of Code Manager cannot report deploy status. Deploy with async: false instead.", getListener());
+      }
+
+      if (result.getResponseCode() < 200 || result.getResponseCode() >= 300 || !(result.getResponseBody() instanceof CodeDeployStatus)) {
+        throw new PEException(String.valueOf(result.getResponseBody()), result.getResponseCode(), getListener());
+      }
+
+      CodeDeployStatus status = (CodeDeployStatus) result.getResponseBody();
+      if (!status.hasDeploysStatus()) {
+        throw new PEException("Code Manager's deploy status did not include the deploy queue, so the deploy's outcome is unknown", getListener());
+      }
+
+      long duration = System.currentTimeMillis() - submittedAt;
+      boolean progressed = false;
+
+      for (Map.Entry<String, Long> deploy : pending.entrySet()) {
+        String env = deploy.getKey();
+        long id = deploy.getValue();
+
+        if (status.isPending(env, id)) {
+          continue;
+        }
+
+        CodeDeployStatus.Deploy failure = status.getFailure(env, id);
+        if (failure != null) {
+          finished.put(env, failedResult(failure.getErrorMessage(), duration));
+        } else {
+          LinkedHashMap complete = new LinkedHashMap();
+          complete.put("status", "complete");
+          complete.put("signature", status.getDeploySignature(env));
+          complete.put("duration", duration);
+          finished.put(env, complete);
+        }
+
+        pending.remove(env);
+        progressed = true;
+      }
+
+      if (pending.isEmpty()) {
+        succeed(report(finished));
+        return;
+      }
+
+      PollingPolicy policy = PuppetEnterpriseConfig.getPollingPolicy();
+      pollInterval = progressed ? policy.getInitialInterval() : policy.nextInterval(pollInterval);
+      schedulePoll(policy.jittered(pollInterval));
+    }
+
+    private void schedulePoll(long delay) {
+      schedule(new Runnable() {
+        @Override public void run() {
+          try {
+            pollDeploys();
+          } catch(Exception e) {
+            fail(e);
+          }
+        }
+      }, delay);
+    }
+
+    private void schedule(Runnable runnable, long delay) {
+      if (!completed.get()) {
+        task = PEScheduler.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void succeed(Object result) {
+      if (completed.compareAndSet(false, true)) {
+        getContext().onSuccess(result);
+      }
+    }
+
+    private void fail(Throwable cause) {
+      if (completed.compareAndSet(false, true)) {
+        Future<?> current = task;
+        if (current != null) {
+          current.cancel(false);
+        }
+        getContext().onFailure(cause);
+      }
+    }
+
+    private TaskListener getListener() throws Exception {
+      if (listener == null) {
+        listener = getContext().get(TaskListener.class);
+      }
+
+      return listener;
+    }
+
+    private HashMap<String, LinkedHashMap> deployBatches(List<List<String>> batches) throws Exception {
+      int parallelism = step.getParallelism() == null ? DEFAULT_PARALLELISM : step.getParallelism();
+      parallelism = Math.max(1, Math.min(parallelism, batches.size()));
+
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new NamingThreadFactory(new DaemonThreadFactory(), "puppetCode"));
+      List<Future<HashMap<String, LinkedHashMap>>> futures = new ArrayList<Future<HashMap<String, LinkedHashMap>>>();
+
+      try {
+        for (final List<String> batch : batches) {
+          futures.add(executor.submit(new Callable<HashMap<String, LinkedHashMap>>() {
+            @Override public HashMap<String, LinkedHashMap> call() throws Exception {
+              return deployBatch(batch);
+            }
+          }));
+        }
+
+        HashMap<String, LinkedHashMap> deployed = new HashMap<String, LinkedHashMap>();
+        for (Future<HashMap<String, LinkedHashMap>> future : futures) {
+          try {
+            deployed.putAll(future.get());
+          } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PEException) {
+              throw (PEException) cause;
+            }
+            throw new PEException(String.valueOf(cause.getMessage()));
+          }
+        }
+
+        return deployed;
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    /**
+     * Deploys one batch of environments and waits for Code Manager to
+     * finish. Failed environments are returned with a failed status, while
+     * errors with the request itself, such as a bad token, are thrown.
+     */
+    private HashMap<String, LinkedHashMap> deployBatch(List<String> batch) throws Exception {
+      LinkedTreeMap body = new LinkedTreeMap();
+      body.put("wait", true);
+      body.put("environments", new ArrayList<String>(batch));
+
+      long started = System.currentTimeMillis();
+      PEResponse result = step.request("/code-manager/v1/deploys", 8170, "POST", body,
+        PEResponseHandlers.typed(DEPLOY_RESULTS_TYPE));
+      long duration = System.currentTimeMillis() - started;
+
+      // If we get a hash back, it usually means a problem with authentication.
+      if (result.getResponseCode() < 200 || result.getResponseCode() >= 300 || !(result.getResponseBody() instanceof List)) {
+        String error = String.valueOf(result.getResponseBody());
+        logger.log(Level.SEVERE, error);
+        throw new PEException(error, result.getResponseCode(), getListener());
+      }
+
+      HashMap<String, LinkedHashMap> deployed = new HashMap<String, LinkedHashMap>();
+      for (CodeDeployResult envResult : (List<CodeDeployResult>) result.getResponseBody()) {
+        deployed.put(envResult.getEnvironment(), toMap(envResult, duration));
+      }
+
+      for (String env : batch) {
+        if (!deployed.containsKey(env)) {
+          deployed.put(env, failedResult("Code Manager did not report a result for the environment", duration));
+        }
       }
 
-      return null;
+      return deployed;
+    }
+
+    private static LinkedHashMap failedResult(String error, long duration) {
+      LinkedHashMap map = new LinkedHashMap();
+      map.put("status", "failed");
+      map.put("error", error);
+      map.put("duration", duration);
+      return map;
+    }
+
+    private static LinkedHashMap toMap(CodeDeployResult envResult, long duration) {
+      LinkedHashMap map = new LinkedHashMap();
+      map.put("status", envResult.getStatus());
+      map.put("signature", envResult.getDeploySignature());
+      map.put("commit", envResult.getEnvironmentCommit());
+      map.put("duration", duration);
+
+      if (envResult.isFailed()) {
+        map.put("error", envResult.getErrorMessage());
+      }
+
+      return map;
     }
 
     private static final long serialVersionUID = 1L;
@@ -109,14 +596,9 @@ public final class CodeDeployStep extends PuppetEnterpriseStep implements Serial
       return false;
     }
 
-    if (responseBody instanceof ArrayList) {
-      ArrayList responseList = (ArrayList) responseBody;
-
-      Iterator itr = responseList.iterator();
-      while(itr.hasNext()) {
-        LinkedTreeMap envResponse = (LinkedTreeMap) itr.next();
-
-        if (envResponse.get("status").equals("failed")) {
+    if (responseBody instanceof List) {
+      for (CodeDeployResult envResponse : (List<CodeDeployResult>) responseBody) {
+        if (envResponse.isFailed()) {
           return false;
         }
       }
@@ -27,6 +27,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.AncestorInPath;
+import java.io.IOException;
 import java.io.Serializable;
 
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
@@ -50,6 +51,8 @@ public final class HieraStep extends AbstractStepImpl {
   private String key = "";
   private String source = "";
   private Object value = null;
+  private LinkedHashMap<String, Object> values = null;
+  private LinkedHashMap<String, LinkedHashMap<String, Object>> scopes = null;
 
   @DataBoundSetter private void setScope(String scope) {
     this.scope = Util.fixEmpty(scope);
@@ -63,6 +66,30 @@ public final class HieraStep extends AbstractStepImpl {
     this.value = value;
   }
 
+  @DataBoundSetter private void setValues(Map values) {
+    this.values = toKeyValues(values);
+  }
+
+  @DataBoundSetter private void setScopes(Map scopes) {
+    this.scopes = new LinkedHashMap<String, LinkedHashMap<String, Object>>();
+
+    for (Object entry : scopes.entrySet()) {
+      Map.Entry scope = (Map.Entry) entry;
+      this.scopes.put(String.valueOf(scope.getKey()), toKeyValues((Map) scope.getValue()));
+    }
+  }
+
+  private static LinkedHashMap<String, Object> toKeyValues(Map values) {
+    LinkedHashMap<String, Object> keyValues = new LinkedHashMap<String, Object>();
+
+    for (Object entry : values.entrySet()) {
+      Map.Entry keyValue = (Map.Entry) entry;
+      keyValues.put(String.valueOf(keyValue.getKey()), keyValue.getValue());
+    }
+
+    return keyValues;
+  }
+
   @DataBoundSetter private void setSource(@Nonnull String source) {
     this.source = source;
   }
@@ -83,11 +110,67 @@ public final class HieraStep extends AbstractStepImpl {
     return this.source;
   }
 
+  /**
+   * Keys and values to set in the scope, all at once.
+   */
+  public Map<String, Object> getValues() {
+    return this.values;
+  }
+
+  /**
+   * Keys and values to set in each of several scopes, all at once.
+   */
+  public Map<String, LinkedHashMap<String, Object>> getScopes() {
+    return this.scopes;
+  }
+
   @DataBoundConstructor public HieraStep() { }
 
-  public void save() {
-    HieraConfig.setKeyValue(this.scope, this.key, this.source, this.value);
-    logger.log(Level.INFO, "Successfully saved key/value pair " + this.key + "/" + this.value + " to scope " + this.scope + " from source " + this.source + ".");
+  /**
+   * Sets the step's keys. Fails if the change could not be read in or
+   * written out, so with sync durability a step that succeeds always has
+   * its change on disk.
+   */
+  public void save(TaskListener listener) throws PEException {
+    if (this.values == null && this.scopes == null) {
+      try {
+        HieraConfig.setKeyValue(this.scope, this.key, this.source, this.value);
+      } catch(IOException e) {
+        throw new PEException("Could not save Hiera key " + this.key + " to scope " + this.scope + ": " + e.getMessage(), listener);
+      }
+
+      logger.log(Level.INFO, "Successfully saved key/value pair " + this.key + "/" + this.value + " to scope " + this.scope + " from source " + this.source + ".");
+      return;
+    }
+
+    LinkedHashMap<String, LinkedHashMap<String, Object>> updates = new LinkedHashMap<String, LinkedHashMap<String, Object>>();
+
+    if (this.scopes != null) {
+      updates.putAll(this.scopes);
+    }
+
+    if (this.values != null) {
+      if (this.scope == null) {
+        throw new PEException("A scope is required to set Hiera values");
+      }
+
+      LinkedHashMap<String, Object> scopeValues = new LinkedHashMap<String, Object>();
+      if (updates.get(this.scope) != null) {
+        scopeValues.putAll(updates.get(this.scope));
+      }
+      scopeValues.putAll(this.values);
+      updates.put(this.scope, scopeValues);
+    }
+
+    try {
+      HieraConfig.setKeyValues(updates, this.source);
+    } catch(IOException e) {
+      throw new PEException("Could not save Hiera keys to scopes " + updates.keySet() + ": " + e.getMessage(), listener);
+    }
+
+    for (Map.Entry<String, LinkedHashMap<String, Object>> scope : updates.entrySet()) {
+      logger.log(Level.INFO, "Successfully saved keys " + scope.getValue().keySet() + " to scope " + scope.getKey() + " from source " + this.source + ".");
+    }
   }
 
   public static class HieraStepExecution extends AbstractSynchronousStepExecution<Void> {
@@ -97,7 +180,7 @@ public final class HieraStep extends AbstractStepImpl {
     @StepContextParameter private transient TaskListener listener;
 
     @Override protected Void run() throws Exception {
-      step.save();
+      step.save(listener);
       return null;
     }
 
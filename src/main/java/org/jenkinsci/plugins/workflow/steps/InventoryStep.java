@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.io.Serializable;
+import com.google.inject.Inject;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.plugins.plaincredentials.*;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.AncestorInPath;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import org.jenkinsci.plugins.puppetenterprise.models.InventoryIndex;
+
+public final class InventoryStep extends PuppetEnterpriseStep implements Serializable {
+
+  private static final Logger logger = Logger.getLogger(InventoryStep.class.getName());
+
+  public static final int DEFAULT_MAX_AGE = 300;
+
+  private String certname = null;
+  private LinkedHashMap<String, Object> filters = new LinkedHashMap<String, Object>();
+  private Integer maxAge = DEFAULT_MAX_AGE;
+
+  @DataBoundSetter private void setCertname(String certname) {
+    this.certname = Util.fixEmpty(certname);
+  }
+
+  @DataBoundSetter private void setFilters(Map filters) {
+    this.filters = new LinkedHashMap<String, Object>();
+
+    for (Object entry : filters.entrySet()) {
+      Map.Entry filter = (Map.Entry) entry;
+      this.filters.put(String.valueOf(filter.getKey()), filter.getValue());
+    }
+  }
+
+  @DataBoundSetter private void setMaxAge(Integer maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  public String getCertname() {
+    return this.certname;
+  }
+
+  public Map<String, Object> getFilters() {
+    return this.filters;
+  }
+
+  /**
+   * Oldest inventory, in seconds, the lookup will accept before refreshing
+   * the index from PuppetDB.
+   */
+  public Integer getMaxAge() {
+    return this.maxAge;
+  }
+
+  @DataBoundConstructor public InventoryStep() { }
+
+  public static class InventoryStepExecution extends AbstractSynchronousNonBlockingStepExecution<Object> {
+
+    @Inject private transient InventoryStep step;
+    @StepContextParameter private transient Run<?, ?> run;
+    @StepContextParameter private transient TaskListener listener;
+
+    @Override protected Object run() throws Exception {
+      int maxAge = step.getMaxAge() == null ? DEFAULT_MAX_AGE : step.getMaxAge();
+      InventoryIndex.Snapshot inventory = InventoryIndex.get(step, TimeUnit.SECONDS.toMillis(maxAge));
+
+      if (step.getCertname() != null) {
+        return inventory.getNode(step.getCertname());
+      }
+
+      return new ArrayList<String>(inventory.find(step.getFilters()));
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Extension public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+    public DescriptorImpl() {
+      super(InventoryStepExecution.class);
+    }
+
+    public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context, @QueryParameter String source) {
+      if (context == null || !context.hasPermission(Item.CONFIGURE)) {
+        return new ListBoxModel();
+      }
+      return new StandardListBoxModel().withEmptySelection().withAll(
+      CredentialsProvider.lookupCredentials(StringCredentials.class, context, ACL.SYSTEM, URIRequirementBuilder.fromUri(source).build()));
+    }
+
+    @Override public String getFunctionName() {
+      return "puppetInventory";
+    }
+
+    @Override public String getDisplayName() {
+      return "Look up nodes in the Puppet Enterprise inventory index";
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.internal.LinkedTreeMap;
+
+import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * One page of the results of a paged PQL query.
+ *
+ * Rows are fetched from PuppetDB one page at a time with the limit, offset
+ * and order_by paging parameters, so no more than one page is ever held in
+ * memory. Pages are only fetched by steps, never by the pipeline script
+ * itself, so PuppetDB calls don't run on the thread that runs every
+ * pipeline's script. The puppet.query DSL method wraps the pages in an
+ * iterator that runs puppetQueryNextPage when a page runs out.
+ */
+public class PQLResults implements Serializable {
+  private static final Logger logger = Logger.getLogger(PQLResults.class.getName());
+
+  private final String query;
+  private final int pageSize;
+  private final ArrayList<LinkedTreeMap> orderBy;
+  private final long offset;
+  private final ArrayList rows;
+  private final boolean lastPage;
+
+  private PQLResults(String query, int pageSize, ArrayList<LinkedTreeMap> orderBy, long offset, ArrayList rows) {
+    this.query = query;
+    this.pageSize = pageSize;
+    this.orderBy = orderBy;
+    this.offset = offset;
+    this.rows = rows;
+    this.lastPage = rows.size() < pageSize;
+  }
+
+  /**
+   * Fetches the first page of the query's results.
+   */
+  public static PQLResults fetch(PuppetEnterpriseStep step, String query, int pageSize, String orderBy) throws PEException {
+    ArrayList<LinkedTreeMap> fields = parseOrderBy(orderBy);
+    return new PQLResults(query, pageSize, fields, 0, fetchRows(step, query, pageSize, fields, 0));
+  }
+
+  /**
+   * Fetches the page after this one. The last page has no next page, so
+   * it returns an empty one.
+   */
+  public PQLResults fetchNext(PuppetEnterpriseStep step) throws PEException {
+    long nextOffset = offset + rows.size();
+
+    if (lastPage) {
+      return new PQLResults(query, pageSize, orderBy, nextOffset, new ArrayList());
+    }
+
+    return new PQLResults(query, pageSize, orderBy, nextOffset, fetchRows(step, query, pageSize, orderBy, nextOffset));
+  }
+
+  /**
+   * Parses "certname, report_timestamp desc" into PuppetDB's order_by form.
+   */
+  static ArrayList<LinkedTreeMap> parseOrderBy(String orderBy) {
+    ArrayList<LinkedTreeMap> fields = new ArrayList<LinkedTreeMap>();
+
+    if (orderBy == null) {
+      return fields;
+    }
+
+    for (String clause : orderBy.split(",")) {
+      String[] parts = clause.trim().split("\\s+");
+      if (parts[0].isEmpty()) {
+        continue;
+      }
+
+      LinkedTreeMap field = new LinkedTreeMap();
+      field.put("field", parts[0]);
+      field.put("order", parts.length > 1 && parts[1].equalsIgnoreCase("desc") ? "desc" : "asc");
+      fields.add(field);
+    }
+
+    return fields;
+  }
+
+  public List getRows() {
+    return Collections.unmodifiableList(rows);
+  }
+
+  /**
+   * Number of rows before this page.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  public boolean isLastPage() {
+    return lastPage;
+  }
+
+  private static ArrayList fetchRows(PuppetEnterpriseStep step, String query, int pageSize, ArrayList<LinkedTreeMap> orderBy, long offset) throws PEException {
+    LinkedTreeMap body = new LinkedTreeMap();
+    body.put("query", query);
+    body.put("limit", pageSize);
+    body.put("offset", offset);
+
+    if (!orderBy.isEmpty()) {
+      body.put("order_by", orderBy);
+    }
+
+    PEResponse result;
+    try {
+      result = step.request("/pdb/query/v4", 8081, "POST", body);
+    } catch(PEException e) {
+      throw e;
+    } catch(Exception e) {
+      throw new PEException(e.getMessage());
+    }
+
+    Integer responseCode = result.getResponseCode();
+    if (responseCode < 200 || responseCode >= 300) {
+      throw new PEException(String.valueOf(result.getResponseBody()), responseCode);
+    }
+
+    ArrayList rows = (ArrayList) result.getResponseBody();
+    if (rows == null) {
+      rows = new ArrayList();
+    }
+
+    logger.log(Level.FINE, "Fetched " + rows.size() + " PuppetDB results at offset " + offset);
+
+    return rows;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -34,7 +34,14 @@ import org.jenkinsci.plugins.workflow.cps.GlobalVariable;
         "method java.lang.Class isInstance java.lang.Object",
         "method java.lang.Throwable getMessage",
         "staticMethod java.lang.System getenv java.lang.String",
-        "method groovy.lang.GroovyObject invokeMethod java.lang.String java.lang.Object"));
+        "method groovy.lang.GroovyObject invokeMethod java.lang.String java.lang.Object",
+        "method org.jenkinsci.plugins.workflow.steps.PQLResults getRows",
+        "method org.jenkinsci.plugins.workflow.steps.PQLResults getOffset",
+        "method org.jenkinsci.plugins.workflow.steps.PQLResults isLastPage",
+        "method org.jenkinsci.plugins.workflow.Puppet$PagedResults hasNext",
+        "method org.jenkinsci.plugins.workflow.Puppet$PagedResults next",
+        "method org.jenkinsci.plugins.workflow.Puppet$PagedResults nextPage",
+        "method org.jenkinsci.plugins.workflow.Puppet$PagedResults getRowsRead"));
     }
   }
 }
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.nio.charset.StandardCharsets;
 import java.lang.InterruptedException;
 import java.security.Security;
@@ -30,6 +31,7 @@ import org.apache.http.client.methods.*;
 import org.apache.http.impl.client.*;
 import org.apache.http.conn.ssl.*;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 import hudson.XmlFile;
 import hudson.FilePath;
@@ -46,6 +48,7 @@ import hudson.security.ACL;
 import java.io.Serializable;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
 
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
@@ -75,81 +78,28 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import javax.annotation.Nonnull;
 
+import org.jenkinsci.plugins.puppetenterprise.models.PEClient;
 import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
 import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.puppetenterprise.http.PETokenCache;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandler;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
 import org.jenkinsci.plugins.workflow.PEException;
 
 public abstract class PuppetEnterpriseStep extends AbstractStepImpl implements Serializable {
 
   private static final Logger logger = Logger.getLogger(PuppetEnterpriseStep.class.getName());
 
+  private static final long MAX_RESPONSE_BYTES = Long.getLong(PuppetEnterpriseStep.class.getName() + ".maxResponseBytes", PEClient.DEFAULT_MAX_RESPONSE_BYTES);
+
   private String credentialsId;
 
   @DataBoundSetter public void setCredentialsId(String credentialsId) {
     this.credentialsId = Util.fixEmpty(credentialsId);
   }
 
-  private static StringCredentials lookupCredentials(@Nonnull String credentialId) {
-    return CredentialsMatchers.firstOrNull(
-      CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.getInstance(), ACL.SYSTEM, null),
-      CredentialsMatchers.withId(credentialId)
-    );
-  }
-
-  private String getToken() {
-    return lookupCredentials(credentialsId).getSecret().toString();
-  }
-
-  private KeyStore getTrustStore(final InputStream pathToPemFile) throws IOException, KeyStoreException,
-  NoSuchAlgorithmException, CertificateException {
-    final KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-    ks.load(null);
-
-    // load all certs
-    for (java.security.cert.Certificate cert : CertificateFactory.getInstance("X509")
-    .generateCertificates(pathToPemFile)) {
-      final X509Certificate crt = (X509Certificate) cert;
-
-      try {
-        final String alias = crt.getSubjectX500Principal().getName();
-        ks.setCertificateEntry(alias, crt);
-      } catch (KeyStoreException exp) {
-        System.out.println(exp.getMessage());
-      }
-    }
-
-    return ks;
-  }
-
-  private CloseableHttpClient createHttpClient() throws IOException {
-    java.security.cert.Certificate ca;
-    SSLConnectionSocketFactory sslsf = null;
-
-    try {
-      CertificateFactory cf = CertificateFactory.getInstance("X.509");
-
-      String caString = PuppetEnterpriseConfig.getPuppetMasterCACertificate();
-      InputStream caStream = new ByteArrayInputStream(caString.getBytes(StandardCharsets.UTF_8));
-      ca = cf.generateCertificate(caStream);
-
-      // Create a KeyStore containing our trusted CAs
-      String keyStoreType = KeyStore.getDefaultType();
-      KeyStore keyStore = KeyStore.getInstance(keyStoreType);
-      keyStore.load(null, null);
-      keyStore.setCertificateEntry("ca", ca);
-
-      SSLContext sslcontext = SSLContexts.custom().loadTrustMaterial(keyStore).build();
-      sslsf = new SSLConnectionSocketFactory(sslcontext,
-                SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
-
-    } catch(CertificateException e) { logger.log(Level.SEVERE, e.getMessage()); }
-      catch(KeyStoreException e) { logger.log(Level.SEVERE, e.getMessage()); }
-      catch(NoSuchAlgorithmException e) { logger.log(Level.SEVERE, e.getMessage()); }
-      catch(KeyManagementException e) { logger.log(Level.SEVERE, e.getMessage()); }
-
-    if (sslsf == null) { System.out.println("sslsf is null"); }
-
-    return HttpClients.custom().setSSLSocketFactory(sslsf).build();
+  protected String getToken() throws PEException {
+    return PETokenCache.getToken(credentialsId);
   }
 
   public final PEResponse request(String url, String method, Map body) throws Exception {
@@ -158,67 +108,18 @@ public abstract class PuppetEnterpriseStep extends AbstractStepImpl implements S
   }
 
   public final PEResponse request(String endpoint, Integer port, String method, Map body) throws Exception {
-    Gson gson = new Gson();
-    String responseString = "";
-    Object responseBody = null;
-    String accessToken = getToken();
-    PEResponse peResponse = null;
-    HttpClient httpClient = null;
-
-    try {
-      httpClient = createHttpClient();
-    } catch(IOException e) {
-      logger.log(Level.SEVERE, e.getMessage());
-      throw new Exception(e.getMessage());
-    }
-
-    if (PuppetEnterpriseConfig.getPuppetMasterUrl() == null || PuppetEnterpriseConfig.getPuppetMasterUrl().isEmpty()) {
-      String message = "The Puppet Enterprise master address has not been configured yet. Configure the Puppet Enterprise page under Manage Jenkins.";
-      logger.log(Level.SEVERE, message);
-      throw new Exception(message);
-    }
-
-    try {
-      HttpResponse response = null;
-
-      if (method.equals("POST")) {
-        HttpPost request = new HttpPost("https://" + PuppetEnterpriseConfig.getPuppetMasterUrl() + ":" + port + endpoint);
-
-        if (body != null) {
-          request.addHeader("content-type", "application/json");
-          request.addHeader("X-Authentication", accessToken);
-          StringEntity requestJson = new StringEntity(gson.toJson(body));
-          request.setEntity(requestJson);
-        }
-        response = httpClient.execute(request);
-      }
-
-      if (method.equals("GET")) {
-        HttpGet request = new HttpGet("https://" + PuppetEnterpriseConfig.getPuppetMasterUrl() + ":" + port + endpoint);
-        request.addHeader("X-Authentication", accessToken);
-        response = httpClient.execute(request);
-      }
-
-      String json = IOUtils.toString(response.getEntity().getContent());
-      Integer responseCode = response.getStatusLine().getStatusCode();
-
-      try {
-        responseBody = gson.fromJson(json, Object.class);
-      } catch(JsonSyntaxException e) {
-        logger.log(Level.SEVERE, e.getMessage());
-
-        LinkedTreeMap errorContent = new LinkedTreeMap();
-        errorContent.put("error", json);
-        return new PEResponse(errorContent, responseCode);
-      }
-
-      peResponse = new PEResponse(responseBody, responseCode);
-
-    } catch(IOException e) {
-      logger.log(Level.SEVERE, e.getMessage());
-    }
-
-    return peResponse;
+    return this.request(endpoint, port, method, body, PEResponseHandlers.tree());
+  }
+
+  public final PEResponse request(String endpoint, Integer port, String method, Map body, PEResponseHandler<?> handler) throws Exception {
+    return this.request(endpoint, port, method, body, handler, MAX_RESPONSE_BYTES);
+  }
+
+  /**
+   * Calls a Puppet Enterprise API with the step's credentials.
+   */
+  public final PEResponse request(String endpoint, Integer port, String method, Map body, PEResponseHandler<?> handler, long maxResponseBytes) throws Exception {
+    return PEClient.request(getToken(), endpoint, port, method, body, handler, maxResponseBytes);
   }
 
   public String getCredentialsId() { return credentialsId; }
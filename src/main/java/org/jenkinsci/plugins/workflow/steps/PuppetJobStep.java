@@ -9,6 +9,9 @@ import hudson.Util;
 import hudson.util.ListBoxModel;
 import hudson.security.ACL;
 import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
@@ -22,7 +25,7 @@ import javax.annotation.Nonnull;
 
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.jenkinsci.plugins.plaincredentials.*;
 import org.apache.commons.lang.StringUtils;
@@ -39,11 +42,19 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
 import java.io.BufferedReader;
+import java.io.PrintStream;
 import java.io.InputStreamReader;
 import com.google.gson.internal.LinkedTreeMap;
 
 import org.jenkinsci.plugins.puppetenterprise.PuppetEnterpriseManagement;
+import org.jenkinsci.plugins.puppetenterprise.http.PEScheduler;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
 import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.puppetenterprise.models.PollingPolicy;
+import org.jenkinsci.plugins.puppetenterprise.models.OrchestratorJob;
+import org.jenkinsci.plugins.puppetenterprise.models.JobNode;
+import org.jenkinsci.plugins.puppetenterprise.models.JobEvent;
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
 import org.jenkinsci.plugins.workflow.PEException;
 
 public final class PuppetJobStep extends PuppetEnterpriseStep implements Serializable {
@@ -57,6 +68,8 @@ public final class PuppetJobStep extends PuppetEnterpriseStep implements Seriali
   private Integer concurrency = null;
   private Boolean noop = false;
   private String environment = null;
+  private Integer pollInterval = null;
+  private Integer maxPollInterval = null;
 
   @DataBoundSetter private void setTarget(String target) {
     this.target = Util.fixEmpty(target);
@@ -74,6 +87,14 @@ public final class PuppetJobStep extends PuppetEnterpriseStep implements Seriali
     this.environment = environment;
   }
 
+  @DataBoundSetter private void setPollInterval(Integer pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  @DataBoundSetter private void setMaxPollInterval(Integer maxPollInterval) {
+    this.maxPollInterval = maxPollInterval;
+  }
+
   @DataBoundSetter private void setQuery(String query) {
     this.query = query;
   }
@@ -114,6 +135,18 @@ public final class PuppetJobStep extends PuppetEnterpriseStep implements Seriali
     return this.noop;
   }
 
+  public Integer getPollInterval() {
+    return this.pollInterval;
+  }
+
+  public Integer getMaxPollInterval() {
+    return this.maxPollInterval;
+  }
+
+  public PollingPolicy getPollingPolicy() {
+    return PuppetEnterpriseConfig.getPollingPolicy().withIntervals(this.pollInterval, this.maxPollInterval);
+  }
+
   @DataBoundConstructor public PuppetJobStep() { }
 
   private static String parseJobId(String idUrl) {
@@ -121,19 +154,64 @@ public final class PuppetJobStep extends PuppetEnterpriseStep implements Seriali
     return jobUrlElements[jobUrlElements.length - 1];
   }
 
-  public static class PuppetJobStepExecution extends AbstractSynchronousStepExecution<Void> {
+  public static class PuppetJobStepExecution extends AbstractStepExecutionImpl {
 
-    @Inject private transient PuppetJobStep step;
+    private static final int NODE_PAGE_SIZE = 500;
+    private static final List<String> TERMINAL_JOB_EVENTS = Arrays.asList("job_finished", "job_failed", "job_stopped", "job_aborted");
+
+    @Inject private PuppetJobStep step;
     @StepContextParameter private transient Run<?, ?> run;
     @StepContextParameter private transient TaskListener listener;
 
-    @SuppressFBWarnings(
-      value = "DLS_DEAD_LOCAL_STORE",
-      justification = "Findbugs is wrong. The variable is not a dead store."
-    )
-    @Override protected Void run() throws Exception {
+    private volatile String jobID = null;
+    private volatile String lastState = null;
+    private volatile long pollInterval = 0;
+    private volatile long eventCursor = 0;
+    private volatile boolean eventsSupported = true;
+    private volatile boolean terminalEventSeen = false;
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private transient volatile ScheduledFuture<?> task = null;
+
+    @Override public boolean start() throws Exception {
+      schedule(new Runnable() {
+        @Override public void run() {
+          try {
+            createJob();
+            schedulePoll(0);
+          } catch(Exception e) {
+            fail(e);
+          }
+        }
+      }, 0);
+
+      return false;
+    }
+
+    @Override public void stop(@Nonnull Throwable cause) throws Exception {
+      cancel();
+
+      if (jobID != null) {
+        getListener().getLogger().println("Stopped tracking Puppet job " + parseJobId(jobID));
+      }
+
+      fail(cause);
+    }
+
+    // The step is persisted with the execution, so there is nothing to
+    // re-inject here. Re-injecting would replace it with an empty step.
+    @Override public void onResume() {
+      if (jobID == null) {
+        fail(new PEException("Jenkins restarted before the Puppet job was created. The Puppet job status is unknown."));
+      } else {
+        pollInterval = step.getPollingPolicy().getInitialInterval();
+        schedulePoll(0);
+      }
+    }
+
+    private void createJob() throws Exception {
       LinkedTreeMap scope = new LinkedTreeMap();
       LinkedTreeMap body = new LinkedTreeMap();
+      TaskListener listener = getListener();
 
       // Target is still supported to support older versions of PE.
       // 2016.4 installs of PE should use the scope parameter when
@@ -197,132 +275,331 @@ public final class PuppetJobStep extends PuppetEnterpriseStep implements Seriali
         throw new PEException(error, result.getResponseCode(), listener);
       }
 
-      LinkedTreeMap job = new LinkedTreeMap();
-      String jobID = "";
-      String jobStatus = "";
-      LinkedTreeMap jobStatusResponseHash = new LinkedTreeMap();
-
       try {
-        job = (LinkedTreeMap) responseHash.get("job");
+        LinkedTreeMap job = (LinkedTreeMap) responseHash.get("job");
         jobID = (String) job.get("id");
-        jobStatus = "";
-
+        pollInterval = step.getPollingPolicy().getInitialInterval();
 
         listener.getLogger().println("Successfully created Puppet job " + parseJobId(jobID));
         logger.log(Level.INFO, "Successfully created Puppet job " + parseJobId(jobID));
       } catch(NullPointerException e){
         throw new PEException(responseHash.toString(), 200);
       }
+    }
+
+    private void poll() throws Exception {
+      String peRequestPath = "/orchestrator/v1/" + jobID;
+      Integer peRequestPort = 8143;
+
+      // The orchestrator API in 2015.2 and 2016.1 returned
+      // a relative path for the job ID while 2016.2 returns
+      // a full URL. This code checks which was returned so
+      // we can support older PE installs.  This should eventually
+      // be deprecated.
+      try {
+        URI uri = new URI (jobID);
+        peRequestPath = uri.getPath();
+        peRequestPort = uri.getPort();
+      } catch(URISyntaxException e) { //do nothing
+      }
 
-      do {
-        String peRequestPath = "/orchestrator/v1/" + jobID;
-        Integer peRequestPort = 8143;
-
-        // The orchestrator API in 2015.2 and 2016.1 returned
-        // a relative path for the job ID while 2016.2 returns
-        // a full URL. This code checks which was returned so
-        // we can support older PE installs.  This should eventually
-        // be deprecated.
-        try {
-          URI uri = new URI (jobID);
-          peRequestPath = uri.getPath();
-          peRequestPort = uri.getPort();
-        } catch(URISyntaxException e) { //do nothing
+      // Follow the job's event stream while it runs so node progress shows
+      // up in the build log as it happens. The full job is only fetched
+      // once the events say it is done. The cursor is past the terminal
+      // event by then, so later polls go straight to the job status, which
+      // can lag behind the event.
+      if (eventsSupported && !terminalEventSeen) {
+        PEResponse eventsResponse = step.request(peRequestPath + "/events?start=" + eventCursor, peRequestPort, "GET", null,
+          PEResponseHandlers.typed(JobEvent.Page.class));
+
+        if (eventsResponse.getResponseCode() == 404) {
+          //PE versions without the events endpoint fall back to polling the job status
+          eventsSupported = false;
+        } else {
+          if (!step.isSuccessful(eventsResponse)) {
+            throw new PEException(String.valueOf(eventsResponse.getResponseBody()), eventsResponse.getResponseCode());
+          }
+
+          long previousCursor = eventCursor;
+          terminalEventSeen = consumeEvents((JobEvent.Page) eventsResponse.getResponseBody());
+
+          if (!terminalEventSeen) {
+            schedulePoll(nextPollDelay(eventCursor != previousCursor));
+            return;
+          }
         }
+      }
+
+      PEResponse jobStatusResponse = step.request(peRequestPath, peRequestPort, "GET", null,
+        PEResponseHandlers.typed(OrchestratorJob.class));
+
+      if (!step.isSuccessful(jobStatusResponse)) {
+        throw new PEException(String.valueOf(jobStatusResponse.getResponseBody()), jobStatusResponse.getResponseCode());
+      }
+
+      OrchestratorJob job = (OrchestratorJob) jobStatusResponse.getResponseBody();
+      String jobStatus = job.getLatestState();
+
+      if (!jobStatus.equals("finished") && !jobStatus.equals("stopped") && !jobStatus.equals("failed")) {
+        boolean stateChanged = !jobStatus.equals(lastState);
+        lastState = jobStatus;
+        schedulePoll(nextPollDelay(stateChanged));
+        return;
+      }
 
-        PEResponse jobStatusResponse = step.request(peRequestPath, peRequestPort, "GET", null);
-        jobStatusResponseHash = (LinkedTreeMap) jobStatusResponse.getResponseBody();
+      boolean jobFailed = jobStatus.equals("failed") || jobStatus.equals("stopped");
+      PrintStream log = getListener().getLogger();
 
-        if (!step.isSuccessful(jobStatusResponse)) {
-          throw new PEException(jobStatusResponseHash.toString(), jobStatusResponse.getResponseCode());
+      if (jobFailed) {
+        log.println("Puppet job " + parseJobId(jobID) + " " + jobStatus + "\n---------\n" + step.formatReportHeader(job, jobStatus));
+      } else {
+        log.println("Successfully ran Puppet job " + parseJobId(jobID) + "\n---------\n" + step.formatReportHeader(job, jobStatus));
+      }
+
+      NodeResultSummary summary = reportNodes(log, job.getNodeCount());
+      log.println("Summary: " + summary);
+
+      if (jobFailed) {
+        throw new PEException("Puppet job " + parseJobId(jobID) + " " + jobStatus + ": " + summary);
+      }
+
+      succeed();
+    }
+
+    /**
+     * Pages through the job's node results and writes each node to the
+     * build log as it is read, keeping only running totals in memory.
+     */
+    private NodeResultSummary reportNodes(PrintStream log, int nodeCount) throws Exception {
+      NodeResultSummary summary = new NodeResultSummary();
+      String nodesPath = "/orchestrator/v1/jobs/" + parseJobId(jobID) + "/nodes";
+      int offset = 0;
+
+      while (true) {
+        PEResponse page = step.request(nodesPath + "?limit=" + NODE_PAGE_SIZE + "&offset=" + offset, 8143, "GET", null,
+          PEResponseHandlers.typed(JobNode.Page.class));
+
+        if (!step.isSuccessful(page)) {
+          throw new PEException(String.valueOf(page.getResponseBody()), page.getResponseCode());
         }
 
-        ArrayList statuses = (ArrayList) jobStatusResponseHash.get("status");
-        LinkedTreeMap latestStatus = (LinkedTreeMap) statuses.get(statuses.size() - 1);
-        String currentState = (String) latestStatus.get("state");
-        jobStatus = currentState;
+        List<JobNode> items = ((JobNode.Page) page.getResponseBody()).getItems();
+        if (items == null) {
+          break;
+        }
 
-        // Sleep for .5 seconds
-        try {
-          Thread.sleep(500);
-        } catch(InterruptedException ex) {
-          Thread.currentThread().interrupt();
+        for (JobNode node : items) {
+          log.print(step.formatNodeReport(node));
+          summary.add(node);
         }
-      } while (!jobStatus.equals("finished") && !jobStatus.equals("stopped") && !jobStatus.equals("failed"));
 
-      PEResponse nodes_response = step.request("/orchestrator/v1/jobs/" + parseJobId(jobID) + "/nodes", 8143, "GET", null);
-      jobStatusResponseHash.put("nodes", nodes_response.getResponseBody());
-      jobStatusResponseHash.put("status", jobStatus);
+        offset += items.size();
 
-      if (jobStatus.equals("failed") || jobStatus.equals("stopped")) {
-        String message = "Puppet job " + parseJobId(jobID) + " " + jobStatus + "\n---------\n" + step.formatReport(jobStatusResponseHash);
-        throw new PEException(message, listener);
+        // A short or empty page is the last page, and a page longer than
+        // the limit means the orchestrator ignored the paging parameters and
+        // sent every node. The node count, when the job reports one, saves
+        // asking for an empty page after a full last page.
+        if (items.size() != NODE_PAGE_SIZE || (nodeCount > 0 && offset >= nodeCount)) {
+          break;
+        }
       }
 
-      String message = "Successfully ran Puppet job " + parseJobId(jobID) + "\n---------\n" + step.formatReport(jobStatusResponseHash);
-      listener.getLogger().println(message);
+      return summary;
+    }
 
-      return null;
+    /**
+     * Logs each new job event and advances the event cursor. Returns true
+     * once the job has reached a final state.
+     */
+    private boolean consumeEvents(JobEvent.Page page) throws Exception {
+      boolean jobEnded = false;
+
+      if (page.getItems() != null) {
+        for (JobEvent event : page.getItems()) {
+          String type = event.getType();
+
+          if (type != null && type.startsWith("node_")) {
+            getListener().getLogger().println(formatNodeEvent(event));
+          } else if (type != null && TERMINAL_JOB_EVENTS.contains(type)) {
+            jobEnded = true;
+          }
+
+          eventCursor = Math.max(eventCursor, event.getId() + 1);
+        }
+      }
+
+      // Prefer the cursor the orchestrator hands back when it provides one.
+      if (page.getNextEvent() != null) {
+        eventCursor = Math.max(eventCursor, page.getNextEvent());
+      }
+
+      return jobEnded;
+    }
+
+    private static String formatNodeEvent(JobEvent event) {
+      String node = event.getNode();
+      String state = event.getType().substring("node_".length());
+
+      StringBuilder line = new StringBuilder("  ");
+      line.append(node == null ? "unknown node" : node);
+      line.append(": ");
+      line.append(state);
+
+      if ((state.equals("failed") || state.equals("errored")) && event.getMessage() != null) {
+        line.append(" - ");
+        line.append(event.getMessage());
+      }
+
+      return line.toString();
+    }
+
+    // Poll quickly right after the job makes progress, then back off while
+    // nothing changes.
+    private long nextPollDelay(boolean progressed) {
+      PollingPolicy policy = step.getPollingPolicy();
+
+      if (progressed) {
+        pollInterval = policy.getInitialInterval();
+      } else {
+        pollInterval = policy.nextInterval(pollInterval);
+      }
+
+      return policy.jittered(pollInterval);
+    }
+
+    private void schedulePoll(long delay) {
+      schedule(new Runnable() {
+        @Override public void run() {
+          try {
+            poll();
+          } catch(Exception e) {
+            fail(e);
+          }
+        }
+      }, delay);
+    }
+
+    private void schedule(Runnable runnable, long delay) {
+      if (!completed.get()) {
+        task = PEScheduler.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void cancel() {
+      ScheduledFuture<?> current = task;
+      if (current != null) {
+        current.cancel(false);
+      }
+    }
+
+    private void succeed() {
+      if (completed.compareAndSet(false, true)) {
+        getContext().onSuccess(null);
+      }
+    }
+
+    private void fail(Throwable cause) {
+      if (completed.compareAndSet(false, true)) {
+        cancel();
+        getContext().onFailure(cause);
+      }
+    }
+
+    private TaskListener getListener() throws Exception {
+      if (listener == null) {
+        listener = getContext().get(TaskListener.class);
+      }
+
+      return listener;
     }
 
     private static final long serialVersionUID = 1L;
   }
 
-  public String formatReport(LinkedTreeMap report) {
+  public String formatReportHeader(OrchestratorJob job, String status) {
     StringBuilder formattedReport = new StringBuilder();
 
-    Integer node_count = ((Double) report.get("node_count")).intValue();
-    String environment = (String) ((LinkedTreeMap) report.get("environment")).get("name");
+    formattedReport.append("Puppet Job Name: " + job.getName() + "\n");
+    formattedReport.append("Status: " + status + "\n");
+    formattedReport.append("Environment: " + job.getEnvironmentName() + "\n");
+    formattedReport.append("Nodes: " + job.getNodeCount() + "\n");
 
-    formattedReport.append("Puppet Job Name: " + (String) report.get("name") + "\n");
-    formattedReport.append("Status: " + (String) report.get("status") + "\n");
-    formattedReport.append("Environment: " + environment + "\n");
-    formattedReport.append("Nodes: " + node_count.toString() + "\n\n");
+    return formattedReport.toString();
+  }
 
-    ArrayList<LinkedTreeMap> nodes = (ArrayList) ((LinkedTreeMap) report.get("nodes")).get("items");
-    for (LinkedTreeMap node : nodes ) {
-      formattedReport.append(node.get("name") + "\n");
+  public String formatNodeReport(JobNode node) {
+    StringBuilder formattedReport = new StringBuilder();
 
-      LinkedTreeMap node_details = (LinkedTreeMap) node.get("details");
+    formattedReport.append(node.getName() + "\n");
 
-      if (node_details.get("metrics") != null) {
-        LinkedTreeMap metrics = (LinkedTreeMap) node_details.get("metrics");
-        Integer failed  = ((Double) metrics.get("failed")).intValue();
-        Integer changed = ((Double) metrics.get("changed")).intValue();
-        Integer skipped = ((Double) metrics.get("skipped")).intValue();
-        Integer corrective = null;
+    JobNode.Metrics metrics = node.getMetrics();
 
-        if (metrics.get("corrective_change") != null) {
-          corrective = ((Double) metrics.get("corrective_change")).intValue();
-        }
+    if (metrics != null) {
+      formattedReport.append("  Resource Events: ");
+      formattedReport.append(metrics.getFailed() + " failed   ");
+      formattedReport.append(metrics.getChanged() + " changed   ");
 
-        formattedReport.append("  Resource Events: ");
-        formattedReport.append(failed.toString() + " failed   ");
-        formattedReport.append(changed.toString() + " changed   ");
+      //PE versions prior to 2016.4 do not include corrective changes
+      if (metrics.getCorrectiveChange() != null) {
+        formattedReport.append(metrics.getCorrectiveChange() + " corrective   ");
+      }
 
-        //PE versions prior to 2016.4 do not include corrective changes
-        if (corrective != null) {
-          formattedReport.append(corrective.toString() + " corrective   ");
-        }
+      formattedReport.append(metrics.getSkipped() + " skipped    ");
+      formattedReport.append("\n");
 
-        formattedReport.append(skipped.toString() + " skipped    ");
-        formattedReport.append("\n");
+      formattedReport.append("  Report URL: " + node.getReportUrl() + "\n");
+      formattedReport.append("\n");
 
-        formattedReport.append("  Report URL: " + node_details.get("report-url") + "\n");
+    } else {
+      //There's always a message, but it's only useful if the run was not able to take place,
+      //  which we'll know if there are no metrics.
+      if (node.getMessage() != null) {
+        formattedReport.append(node.getMessage() + "\n");
         formattedReport.append("\n");
+      }
+    }
 
-      } else {
-        //There's always a message, but it's only useful if the run was not able to take place,
-        //  which we'll know if there are no metrics.
-        if (node_details.get("message") != null) {
-          formattedReport.append(node_details.get("message") + "\n");
-          formattedReport.append("\n");
-        }
+    return formattedReport.toString();
+  }
+
+  /**
+   * Running totals over a job's node results, so the report can be written
+   * one page at a time without keeping the nodes around.
+   */
+  public static final class NodeResultSummary {
+    private int nodes = 0;
+    private int failedNodes = 0;
+    private long failedResources = 0;
+    private long changedResources = 0;
+    private long skippedResources = 0;
+
+    public void add(JobNode node) {
+      nodes++;
+
+      if (node.isFailed()) {
+        failedNodes++;
       }
 
+      JobNode.Metrics metrics = node.getMetrics();
+      if (metrics != null) {
+        failedResources += metrics.getFailed();
+        changedResources += metrics.getChanged();
+        skippedResources += metrics.getSkipped();
+      }
     }
 
-    return formattedReport.toString();
+    public int getNodes() {
+      return this.nodes;
+    }
+
+    public int getFailedNodes() {
+      return this.failedNodes;
+    }
+
+    @Override public String toString() {
+      return nodes + " nodes (" + failedNodes + " failed), resource events: " +
+        failedResources + " failed, " + changedResources + " changed, " + skippedResources + " skipped";
+    }
   }
 
   public Boolean isSuccessful(PEResponse response) {
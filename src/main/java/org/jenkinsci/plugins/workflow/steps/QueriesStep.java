@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.io.Serializable;
+import com.google.inject.Inject;
+import com.google.gson.internal.LinkedTreeMap;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.plugins.plaincredentials.*;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.AncestorInPath;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.workflow.PEException;
+
+public final class QueriesStep extends PuppetEnterpriseStep implements Serializable {
+
+  private static final Logger logger = Logger.getLogger(QueriesStep.class.getName());
+
+  // Matches the connections the shared HTTP client allows per route.
+  public static final int MAX_PARALLELISM = 16;
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  private LinkedHashMap<String, String> queries = new LinkedHashMap<String, String>();
+  private Integer parallelism = DEFAULT_PARALLELISM;
+
+  @DataBoundSetter private void setQueries(Map queries) {
+    this.queries = new LinkedHashMap<String, String>();
+
+    for (Object entry : queries.entrySet()) {
+      Map.Entry query = (Map.Entry) entry;
+      this.queries.put(String.valueOf(query.getKey()), String.valueOf(query.getValue()));
+    }
+  }
+
+  @DataBoundSetter private void setParallelism(Integer parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public Map<String, String> getQueries() {
+    return this.queries;
+  }
+
+  public Integer getParallelism() {
+    return this.parallelism;
+  }
+
+  @DataBoundConstructor public QueriesStep() { }
+
+  public static class QueriesStepExecution extends AbstractSynchronousNonBlockingStepExecution<LinkedHashMap> {
+
+    @Inject private transient QueriesStep step;
+    @StepContextParameter private transient Run<?, ?> run;
+    @StepContextParameter private transient TaskListener listener;
+
+    @Override protected LinkedHashMap run() throws Exception {
+      Map<String, String> queries = step.getQueries();
+      LinkedHashMap results = new LinkedHashMap();
+
+      if (queries.isEmpty()) {
+        return results;
+      }
+
+      int parallelism = step.getParallelism() == null ? DEFAULT_PARALLELISM : step.getParallelism();
+      parallelism = Math.max(1, Math.min(Math.min(parallelism, MAX_PARALLELISM), queries.size()));
+
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new NamingThreadFactory(new DaemonThreadFactory(), "puppetQueries"));
+      ExecutorCompletionService<Map.Entry<String, ArrayList>> completion = new ExecutorCompletionService<Map.Entry<String, ArrayList>>(executor);
+
+      try {
+        for (final Map.Entry<String, String> query : queries.entrySet()) {
+          completion.submit(new Callable<Map.Entry<String, ArrayList>>() {
+            @Override public Map.Entry<String, ArrayList> call() throws Exception {
+              return new AbstractMap.SimpleImmutableEntry<String, ArrayList>(query.getKey(), runQuery(query.getKey(), query.getValue()));
+            }
+          });
+        }
+
+        HashMap<String, ArrayList> completed = new HashMap<String, ArrayList>();
+        for (int i = 0; i < queries.size(); i++) {
+          try {
+            Map.Entry<String, ArrayList> result = completion.take().get();
+            completed.put(result.getKey(), result.getValue());
+          } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PEException) {
+              throw (PEException) cause;
+            }
+            throw new PEException(String.valueOf(cause.getMessage()));
+          }
+        }
+
+        // Return the results in the order the queries were given
+        for (String name : queries.keySet()) {
+          results.put(name, completed.get(name));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+
+      listener.getLogger().println("Ran " + queries.size() + " PuppetDB queries, " + parallelism + " at a time");
+      return results;
+    }
+
+    private ArrayList runQuery(String name, String query) throws Exception {
+      LinkedTreeMap body = new LinkedTreeMap();
+      body.put("query", query);
+
+      PEResponse result = step.request("/pdb/query/v4", 8081, "POST", body);
+
+      if (!step.isSuccessful(result)) {
+        String error = "Query '" + name + "' failed: " + String.valueOf(result.getResponseBody());
+
+        logger.log(Level.SEVERE, error);
+        throw new PEException(error, result.getResponseCode());
+      }
+
+      return (ArrayList) result.getResponseBody();
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  public Boolean isSuccessful(PEResponse response) {
+    Integer responseCode = response.getResponseCode();
+
+    if (responseCode < 200 || responseCode >= 300) {
+      return false;
+    }
+
+    return true;
+  }
+
+  @Extension public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+    public DescriptorImpl() {
+      super(QueriesStepExecution.class);
+    }
+
+    public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context, @QueryParameter String source) {
+      if (context == null || !context.hasPermission(Item.CONFIGURE)) {
+        return new ListBoxModel();
+      }
+      return new StandardListBoxModel().withEmptySelection().withAll(
+      CredentialsProvider.lookupCredentials(StringCredentials.class, context, ACL.SYSTEM, URIRequirementBuilder.fromUri(source).build()));
+    }
+
+    @Override public String getFunctionName() {
+      return "puppetQueries";
+    }
+
+    @Override public String getDisplayName() {
+      return "Run several PuppetDB PQL queries concurrently";
+    }
+  }
+}
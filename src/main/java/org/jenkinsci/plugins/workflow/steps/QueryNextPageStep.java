@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import java.io.Serializable;
+import java.util.logging.Logger;
+import com.google.inject.Inject;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.plugins.plaincredentials.*;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.AncestorInPath;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import org.jenkinsci.plugins.workflow.PEException;
+
+/**
+ * Fetches the page after a page of paged puppetQuery results. The fetch
+ * runs in the step's own thread rather than in the pipeline script.
+ */
+public final class QueryNextPageStep extends PuppetEnterpriseStep implements Serializable {
+
+  private static final Logger logger = Logger.getLogger(QueryNextPageStep.class.getName());
+
+  private PQLResults results = null;
+
+  @DataBoundSetter private void setResults(PQLResults results) {
+    this.results = results;
+  }
+
+  public PQLResults getResults() {
+    return this.results;
+  }
+
+  @DataBoundConstructor public QueryNextPageStep() { }
+
+  public static class QueryNextPageStepExecution extends AbstractSynchronousNonBlockingStepExecution<PQLResults> {
+
+    @Inject private transient QueryNextPageStep step;
+    @StepContextParameter private transient Run<?, ?> run;
+    @StepContextParameter private transient TaskListener listener;
+
+    @Override protected PQLResults run() throws Exception {
+      if (step.getResults() == null) {
+        throw new PEException("puppetQueryNextPage needs the results of a paged puppetQuery", listener);
+      }
+
+      return step.getResults().fetchNext(step);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Extension public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+    public DescriptorImpl() {
+      super(QueryNextPageStepExecution.class);
+    }
+
+    public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context, @QueryParameter String source) {
+      if (context == null || !context.hasPermission(Item.CONFIGURE)) {
+        return new ListBoxModel();
+      }
+      return new StandardListBoxModel().withEmptySelection().withAll(
+      CredentialsProvider.lookupCredentials(StringCredentials.class, context, ACL.SYSTEM, URIRequirementBuilder.fromUri(source).build()));
+    }
+
+    @Override public String getFunctionName() {
+      return "puppetQueryNextPage";
+    }
+
+    @Override public String getDisplayName() {
+      return "Fetch the next page of paged PuppetDB query results";
+    }
+  }
+}
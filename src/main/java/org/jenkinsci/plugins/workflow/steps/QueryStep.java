@@ -20,7 +20,7 @@ import javax.annotation.Nonnull;
 
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.jenkinsci.plugins.plaincredentials.*;
 import org.apache.commons.lang.StringUtils;
@@ -37,11 +37,27 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import hudson.FilePath;
 import com.google.gson.internal.LinkedTreeMap;
 
 import org.jenkinsci.plugins.puppetenterprise.PuppetEnterpriseManagement;
 import org.jenkinsci.plugins.puppetenterprise.models.PEResponse;
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetDBRow;
+import org.jenkinsci.plugins.puppetenterprise.models.QuerySnapshot;
+import org.jenkinsci.plugins.puppetenterprise.http.PEGson;
+import org.jenkinsci.plugins.puppetenterprise.http.PEResponseHandlers;
+import org.jenkinsci.plugins.puppetenterprise.http.PuppetDBQueryCache;
+import org.jenkinsci.plugins.puppetenterprise.http.ColumnarResultHandler;
 import org.jenkinsci.plugins.workflow.PEException;
 
 public final class QueryStep extends PuppetEnterpriseStep implements Serializable {
@@ -49,27 +65,176 @@ public final class QueryStep extends PuppetEnterpriseStep implements Serializabl
   private static final Logger logger = Logger.getLogger(PuppetJobStep.class.getName());
 
   private String query = "";
+  private String outputFile = null;
+  private Boolean gzip = false;
+  private Integer pageSize = null;
+  private String orderBy = null;
+  private Integer cacheTtl = null;
+  private Boolean bypassCache = false;
+  private Boolean columnar = false;
+  private Boolean certnamesOnly = false;
+  private Boolean incremental = false;
+  private String watermarkField = "producer_timestamp";
+  private String keyField = "certname";
 
   @DataBoundSetter private void setQuery(String query) {
     this.query = query;
   }
 
+  @DataBoundSetter private void setOutputFile(String outputFile) {
+    this.outputFile = Util.fixEmpty(outputFile);
+  }
+
+  @DataBoundSetter private void setGzip(Boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  @DataBoundSetter private void setPageSize(Integer pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  @DataBoundSetter private void setOrderBy(String orderBy) {
+    this.orderBy = Util.fixEmpty(orderBy);
+  }
+
+  @DataBoundSetter private void setCacheTtl(Integer cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  @DataBoundSetter private void setBypassCache(Boolean bypassCache) {
+    this.bypassCache = bypassCache;
+  }
+
+  @DataBoundSetter private void setColumnar(Boolean columnar) {
+    this.columnar = columnar;
+  }
+
+  @DataBoundSetter private void setCertnamesOnly(Boolean certnamesOnly) {
+    this.certnamesOnly = certnamesOnly;
+  }
+
+  @DataBoundSetter private void setIncremental(Boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  @DataBoundSetter private void setWatermarkField(String watermarkField) {
+    this.watermarkField = Util.fixEmpty(watermarkField) == null ? "producer_timestamp" : watermarkField;
+  }
+
+  @DataBoundSetter private void setKeyField(String keyField) {
+    this.keyField = Util.fixEmpty(keyField) == null ? "certname" : keyField;
+  }
+
   public String getQuery() {
     return this.query;
   }
 
+  public String getOutputFile() {
+    return this.outputFile;
+  }
+
+  public Boolean getGzip() {
+    return this.gzip;
+  }
+
+  public Integer getPageSize() {
+    return this.pageSize;
+  }
+
+  public String getOrderBy() {
+    return this.orderBy;
+  }
+
+  /**
+   * Seconds to cache the results for. Unset or zero disables caching. Only
+   * queries returning a plain list of rows are cached, so it can't be set
+   * together with outputFile, pageSize, columnar, certnamesOnly or
+   * incremental.
+   */
+  public Integer getCacheTtl() {
+    return this.cacheTtl;
+  }
+
+  public Boolean getBypassCache() {
+    return this.bypassCache;
+  }
+
+  public Boolean getColumnar() {
+    return this.columnar;
+  }
+
+  public Boolean getCertnamesOnly() {
+    return this.certnamesOnly;
+  }
+
+  public Boolean getIncremental() {
+    return this.incremental;
+  }
+
+  public String getWatermarkField() {
+    return this.watermarkField;
+  }
+
+  public String getKeyField() {
+    return this.keyField;
+  }
+
   @DataBoundConstructor public QueryStep() { }
 
-  public static class QueryStepExecution extends AbstractSynchronousStepExecution<ArrayList> {
+  public static class QueryStepExecution extends AbstractSynchronousNonBlockingStepExecution<Object> {
 
     @Inject private transient QueryStep step;
     @StepContextParameter private transient Run<?, ?> run;
     @StepContextParameter private transient TaskListener listener;
 
-    @Override protected ArrayList run() throws Exception {
+    @Override protected Object run() throws Exception {
       LinkedTreeMap body = new LinkedTreeMap();
       body.put("query", step.getQuery());
 
+      String uncached = uncachedOption();
+      if (uncached != null && step.getCacheTtl() != null && step.getCacheTtl() > 0) {
+        throw new PEException("cacheTtl can't be used with " + uncached + ", only plain queries are cached", listener);
+      }
+
+      if (step.getOutputFile() != null) {
+        return writeResults(body);
+      }
+
+      if (step.getIncremental()) {
+        return queryIncrementally();
+      }
+
+      if (step.getPageSize() != null) {
+        if (step.getPageSize() < 1) {
+          throw new PEException("pageSize must be greater than zero", listener);
+        }
+
+        if (step.getOrderBy() == null) {
+          listener.getLogger().println("Warning: paging through PuppetDB results without orderBy can skip or repeat rows");
+        }
+
+        return PQLResults.fetch(step, step.getQuery(), step.getPageSize(), step.getOrderBy());
+      }
+
+      if (step.getCertnamesOnly() || step.getColumnar()) {
+        return readColumns(body);
+      }
+
+      String master = PuppetEnterpriseConfig.getPuppetMasterUrl();
+      long cacheTtl = step.getCacheTtl() == null ? 0 : step.getCacheTtl();
+
+      // Results are cached per token, so a build is only handed results
+      // fetched with its own token
+      String token = step.getToken();
+
+      if (cacheTtl > 0 && !step.getBypassCache()) {
+        ArrayList cached = PuppetDBQueryCache.get(master, token, step.getQuery());
+        if (cached != null) {
+          listener.getLogger().println("Using cached PuppetDB results for query");
+          return cached;
+        }
+      }
+
       PEResponse result = step.request("/pdb/query/v4", 8081, "POST", body);
       Object response = result.getResponseBody();
 
@@ -81,10 +246,176 @@ public final class QueryStep extends PuppetEnterpriseStep implements Serializabl
       }
 
       ArrayList responseArray = (ArrayList) response;
+      PuppetDBQueryCache.put(master, token, step.getQuery(), responseArray, cacheTtl);
 
       return responseArray;
     }
 
+    // The option that makes the step return something other than a list of
+    // rows, or null if there is none
+    private String uncachedOption() {
+      if (step.getOutputFile() != null) {
+        return "outputFile";
+      } else if (step.getIncremental()) {
+        return "incremental";
+      } else if (step.getPageSize() != null) {
+        return "pageSize";
+      } else if (step.getCertnamesOnly()) {
+        return "certnamesOnly";
+      } else if (step.getColumnar()) {
+        return "columnar";
+      }
+
+      return null;
+    }
+
+    /**
+     * Only asks PuppetDB for rows changed since the last build of this job
+     * and merges them into the job's snapshot of the query. Returns the
+     * changed rows, every row of the snapshot, the new watermark and the
+     * snapshot size.
+     */
+    private HashMap queryIncrementally() throws Exception {
+      File jobDir = run.getParent().getRootDir();
+
+      synchronized (QuerySnapshot.lockFor(jobDir, step.getQuery())) {
+        QuerySnapshot snapshot = QuerySnapshot.load(jobDir, step.getQuery(), step.getWatermarkField(), step.getKeyField());
+
+        LinkedTreeMap body = new LinkedTreeMap();
+        body.put("query", snapshot.boundQuery(step.getQuery()));
+
+        PEResponse result = step.request("/pdb/query/v4", 8081, "POST", body, PEResponseHandlers.typed(PuppetDBRow.LIST));
+
+        if (!step.isSuccessful(result)) {
+          String error = String.valueOf(result.getResponseBody());
+
+          logger.log(Level.SEVERE, error);
+          throw new PEException(error, result.getResponseCode());
+        }
+
+        List<PuppetDBRow> changed = (List<PuppetDBRow>) result.getResponseBody();
+        if (changed == null) {
+          changed = new ArrayList<PuppetDBRow>();
+        }
+
+        String previous = snapshot.getWatermark();
+        snapshot.merge(changed);
+        snapshot.save();
+
+        if (previous == null) {
+          listener.getLogger().println("Started PuppetDB query snapshot with " + snapshot.size() + " results");
+        } else {
+          listener.getLogger().println(changed.size() + " PuppetDB results changed since " + previous);
+        }
+
+        HashMap output = new HashMap();
+        output.put("changed", PuppetDBRow.toMaps(changed));
+        output.put("watermark", snapshot.getWatermark());
+        output.put("total", snapshot.size());
+        output.put("rows", snapshot.getRows());
+        return output;
+      }
+    }
+
+    /**
+     * Reads the results straight into one array per column. In certnamesOnly
+     * mode only the certname column is kept and returned as a String[].
+     */
+    private Object readColumns(LinkedTreeMap body) throws Exception {
+      String onlyField = step.getCertnamesOnly() ? "certname" : null;
+      PEResponse result = step.request("/pdb/query/v4", 8081, "POST", body, new ColumnarResultHandler(onlyField));
+
+      if (!step.isSuccessful(result)) {
+        String error = String.valueOf(result.getResponseBody());
+
+        logger.log(Level.SEVERE, error);
+        throw new PEException(error, result.getResponseCode());
+      }
+
+      LinkedHashMap<String, Object> columns = (LinkedHashMap<String, Object>) result.getResponseBody();
+      if (columns == null) {
+        columns = new LinkedHashMap<String, Object>();
+      }
+
+      if (onlyField != null) {
+        // Rows without a certname leave nulls in the column
+        Object certnames = columns.get(onlyField);
+        if (!(certnames instanceof String[]) || Arrays.asList((String[]) certnames).contains(null)) {
+          throw new PEException("certnamesOnly requires every result to have a certname string", listener);
+        }
+
+        return certnames;
+      }
+
+      return columns;
+    }
+
+    /**
+     * Streams the query results row by row into a newline delimited JSON
+     * file in the workspace, so the rows never reach the pipeline's heap.
+     * The rows go to a temporary file next to the output file, which only
+     * replaces it once every row is written, so a failed query never leaves
+     * a partial file behind. Returns the file path and row count.
+     */
+    private HashMap writeResults(LinkedTreeMap body) throws Exception {
+      FilePath workspace = getContext().get(FilePath.class);
+      if (workspace == null) {
+        throw new PEException("puppetQuery needs a workspace to write " + step.getOutputFile() + ". Run it inside a node block.", listener);
+      }
+
+      FilePath target = workspace.child(step.getOutputFile());
+      target.getParent().mkdirs();
+
+      FilePath partial = target.getParent().createTempFile(target.getName(), ".partial");
+      boolean written = false;
+
+      try {
+        OutputStream out = partial.write();
+        if (step.getGzip()) {
+          out = new GZIPOutputStream(out);
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        PEResponse result = null;
+
+        try {
+          result = step.request("/pdb/query/v4", 8081, "POST", body, PEResponseHandlers.eachElement(
+            new PEResponseHandlers.ElementVisitor() {
+              @Override public void visit(Object row) throws IOException {
+                PEGson.get().toJson(row, writer);
+                writer.write('\n');
+              }
+            }));
+        } finally {
+          writer.close();
+        }
+
+        if (!step.isSuccessful(result)) {
+          String error = String.valueOf(result.getResponseBody());
+          logger.log(Level.SEVERE, error);
+          throw new PEException(error, result.getResponseCode());
+        }
+
+        if (target.exists()) {
+          target.delete();
+        }
+        partial.renameTo(target);
+        written = true;
+
+        Long rows = (Long) result.getResponseBody();
+        listener.getLogger().println("Wrote " + rows + " PuppetDB results to " + target.getRemote());
+
+        HashMap output = new HashMap();
+        output.put("path", target.getRemote());
+        output.put("rows", rows == null ? 0L : rows);
+        return output;
+      } finally {
+        if (!written) {
+          partial.delete();
+        }
+      }
+    }
+
     private static final long serialVersionUID = 1L;
   }
 
@@ -28,11 +28,114 @@ class Puppet implements Serializable {
         script.error(message: "No Credentials provided for puppet.query. Specify 'credentials' parameter or use puppet.credentials()")
       }
 
-      script.puppetQuery(query: query, credentialsId: credentials)
+      Map options = [query: query, credentialsId: credentials]
+
+      if (parameters.outputFile) {
+        assert parameters.outputFile instanceof String
+        options.outputFile = parameters.outputFile
+        options.gzip = parameters.gzip ? true : false
+      }
+
+      if (parameters.pageSize) {
+        assert parameters.pageSize instanceof Integer
+        options.pageSize = parameters.pageSize
+        options.orderBy = parameters.orderBy
+      }
+
+      if (parameters.cacheTtl) {
+        assert parameters.cacheTtl instanceof Integer
+        options.cacheTtl = parameters.cacheTtl
+        options.bypassCache = parameters.bypassCache ? true : false
+      }
+
+      if (parameters.columnar) {
+        options.columnar = true
+      }
+
+      if (parameters.certnamesOnly) {
+        options.certnamesOnly = true
+      }
+
+      if (parameters.incremental) {
+        options.incremental = true
+        options.watermarkField = parameters.watermarkField
+        options.keyField = parameters.keyField
+      }
+
+      if (options.pageSize) {
+        new PagedResults(script, script.puppetQuery(options), credentials)
+      } else {
+        script.puppetQuery(options)
+      }
+    }
+  }
+
+  public <V> V queries(Map parameters = [:], Map queries) {
+    String credentials
+    Integer parallelism = null
+
+    node {
+      if (parameters.credentials) {
+        credentials = parameters.credentials
+      } else {
+        credentials = credentialsId
+      }
+
+      if (parameters.parallelism) {
+        assert parameters.parallelism instanceof Integer
+        parallelism = parameters.parallelism
+      }
+
+      if(credentials == null) {
+        script.error(message: "No Credentials provided for puppet.queries. Specify 'credentials' parameter or use puppet.credentials()")
+      }
+
+      script.puppetQueries(queries: queries, credentialsId: credentials, parallelism: parallelism)
+    }
+  }
+
+  public <V> V inventory(Map parameters = [:], Map filters) {
+    inventoryLookup(parameters, [filters: filters], 'puppet.inventory')
+  }
+
+  public <V> V inventoryNode(Map parameters = [:], String certname) {
+    inventoryLookup(parameters, [certname: certname], 'puppet.inventoryNode')
+  }
+
+  private <V> V inventoryLookup(Map parameters, Map lookup, String method) {
+    String credentials
+
+    node {
+      if (parameters.credentials) {
+        credentials = parameters.credentials
+      } else {
+        credentials = credentialsId
+      }
+
+      if(credentials == null) {
+        script.error(message: "No Credentials provided for ${method}. Specify 'credentials' parameter or use puppet.credentials()")
+      }
+
+      lookup.credentialsId = credentials
+
+      if (parameters.maxAge) {
+        assert parameters.maxAge instanceof Integer
+        lookup.maxAge = parameters.maxAge
+      }
+
+      script.puppetInventory(lookup)
     }
   }
 
   public <V> V codeDeploy(Map parameters = [:], String env) {
+    deployCode(parameters, [environment: env])
+  }
+
+  public <V> V codeDeploy(Map parameters = [:], List envs) {
+    deployCode(parameters, [environments: new ArrayList(envs)])
+  }
+
+  private <V> V deployCode(Map parameters, Map options) {
     String credentials
 
     node {
@@ -46,7 +149,29 @@ class Puppet implements Serializable {
         script.error(message: "No Credentials provided for puppet.codeDeploy. Specify 'credentials' parameter or use puppet.credentials()")
       }
 
-      script.puppetCode(environment: env, credentialsId: credentials)
+      options.credentialsId = credentials
+
+      if (parameters.batchSize) {
+        assert parameters.batchSize instanceof Integer
+        options.batchSize = parameters.batchSize
+      }
+
+      if (parameters.parallelism) {
+        assert parameters.parallelism instanceof Integer
+        options.parallelism = parameters.parallelism
+      }
+
+      if (parameters.commit) {
+        assert parameters.commit instanceof String
+        options.commit = parameters.commit
+      }
+
+      if (parameters.async) {
+        assert parameters.async instanceof Boolean
+        options.async = parameters.async
+      }
+
+      script.puppetCode(options)
     }
   }
 
@@ -58,6 +183,8 @@ class Puppet implements Serializable {
     ArrayList nodes = []
     Boolean noop = false
     Integer concurrency = null
+    Integer pollInterval = null
+    Integer maxPollInterval = null
 
     node {
       if (parameters.credentials) {
@@ -96,12 +223,22 @@ class Puppet implements Serializable {
         concurrency = parameters.concurrency
       }
 
+      if (parameters.pollInterval) {
+        assert parameters.pollInterval instanceof Integer
+        pollInterval = parameters.pollInterval
+      }
+
+      if (parameters.maxPollInterval) {
+        assert parameters.maxPollInterval instanceof Integer
+        maxPollInterval = parameters.maxPollInterval
+      }
+
       if (credentials == null) {
         script.error(message: "No Credentials provided for puppet.run. Specify 'credentials' parameter or use puppet.credentials()")
       }
 
       try {
-        script.puppetJob(environment: env, target: target, concurrency: concurrency, credentialsId: credentials, nodes: nodes, query: query, application: application, noop: noop)
+        script.puppetJob(environment: env, target: target, concurrency: concurrency, credentialsId: credentials, nodes: nodes, query: query, application: application, noop: noop, pollInterval: pollInterval, maxPollInterval: maxPollInterval)
       } catch(err) {
         script.error(message: err.message)
       }
@@ -111,13 +248,38 @@ class Puppet implements Serializable {
   public <V> V hiera(Map parameters = [:]) {
     String credentials
 
-    assert parameters.scope instanceof String
-    assert parameters.key instanceof String
+    if (parameters.scopes != null) {
+      assert parameters.scopes instanceof Map
+    } else if (parameters.values != null) {
+      assert parameters.scope instanceof String
+      assert parameters.values instanceof Map
+    } else {
+      assert parameters.scope instanceof String
+      assert parameters.key instanceof String
+    }
 
     node {
       def projectName = script.env.JOB_NAME
 
-      script.puppetHiera(scope: parameters.scope, key: parameters.key, source: projectName, value: parameters.value)
+      if (parameters.scopes != null || parameters.values != null) {
+        Map options = [source: projectName]
+
+        if (parameters.scope != null) {
+          options.scope = parameters.scope
+        }
+
+        if (parameters.values != null) {
+          options.values = parameters.values
+        }
+
+        if (parameters.scopes != null) {
+          options.scopes = parameters.scopes
+        }
+
+        script.puppetHiera(options)
+      } else {
+        script.puppetHiera(scope: parameters.scope, key: parameters.key, source: projectName, value: parameters.value)
+      }
     }
   }
 
@@ -131,4 +293,54 @@ class Puppet implements Serializable {
         }
     }
   }
+
+  // Iterates over paged query results. Each page after the first is
+  // fetched by the puppetQueryNextPage step, so the PuppetDB call never
+  // blocks the thread running the pipeline scripts.
+  public static class PagedResults implements Serializable {
+    private org.jenkinsci.plugins.workflow.cps.CpsScript script
+    private String credentials
+    private def page
+    private int index = 0
+
+    public PagedResults(org.jenkinsci.plugins.workflow.cps.CpsScript script, page, String credentials) {
+      this.script = script
+      this.page = page
+      this.credentials = credentials
+    }
+
+    public boolean hasNext() {
+      if (index >= page.rows.size() && !page.lastPage) {
+        page = script.puppetQueryNextPage(results: page, credentialsId: credentials)
+        index = 0
+      }
+
+      return index < page.rows.size()
+    }
+
+    public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException()
+      }
+
+      return page.rows[index++]
+    }
+
+    // Returns the remaining rows of the current page and moves to the next
+    // one. Returns an empty list once every row has been read.
+    public List nextPage() {
+      List rows = []
+
+      if (hasNext()) {
+        rows.addAll(page.rows.subList(index, page.rows.size()))
+        index = page.rows.size()
+      }
+
+      return rows
+    }
+
+    public long getRowsRead() {
+      return page.offset + index
+    }
+  }
 }
@@ -27,10 +27,12 @@ import org.jenkinsci.plugins.workflow.steps.CodeDeployStepTest;
 import org.jenkinsci.plugins.workflow.steps.PuppetJobStepTest;
 import org.jenkinsci.plugins.workflow.steps.HieraStepTest;
 import org.jenkinsci.plugins.workflow.steps.QueryStepTest;
+import org.jenkinsci.plugins.workflow.steps.QueriesStepTest;
+import org.jenkinsci.plugins.workflow.steps.InventoryStepTest;
 import org.jenkinsci.plugins.puppetenterprise.TestUtils;
 
 @RunWith(Suite.class)
-@SuiteClasses({PuppetJobStepTest.class, CodeDeployStepTest.class, HieraStepTest.class, QueryStepTest.class})
+@SuiteClasses({PuppetJobStepTest.class, CodeDeployStepTest.class, HieraStepTest.class, QueryStepTest.class, QueriesStepTest.class, InventoryStepTest.class})
 public class TestBase {
 
   private static WireMockServer mockPuppetServer;
@@ -140,6 +140,258 @@ public class CodeDeployStepTest extends Assert {
     });
   }
 
+  @Test
+  public void codeDeployMultipleEnvironmentsInBatches() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy.json"))));
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"nosuchenv\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy_failed_no_such_env.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy of Several Environments");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.codeDeploy(['production', 'nosuchenv'], credentials: 'pe-test-token', batchSize: 1, parallelism: 2)\n" +
+          "}", true));
+        WorkflowRun result = job.scheduleBuild2(0).get();
+        story.j.assertBuildStatus(Result.FAILURE, result);
+        story.j.assertLogContains("Successfully deployed [production] Puppet environment code.", result);
+        story.j.assertLogContains("nosuchenv: Errors while deploying environment 'nosuchenv'", result);
+
+        verify(2, postRequestedFor(urlEqualTo("/code-manager/v1/deploys")));
+      }
+    });
+  }
+
+  @Test
+  public void codeDeployAsyncPollsStatus() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": false}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy_queued.json"))));
+
+    mockCodeManagerService.stubFor(get(urlEqualTo("/code-manager/v1/deploys/status"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy_status.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Asynchronous Code Deploy");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  results = puppet.codeDeploy 'production', credentials: 'pe-test-token', async: true\n" +
+          "  assert results.production.status == 'complete' \n" +
+          "  assert results.production.signature == '45ddf48253c2ee7537aae05c7e674879fd8bb616' \n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Queued Puppet code deploy of [production]", result);
+
+        verify(getRequestedFor(urlEqualTo("/code-manager/v1/deploys/status")));
+      }
+    });
+  }
+
+  @Test
+  public void codeDeployAsyncFailsWithoutDeployQueue() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": false}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy_queued.json"))));
+
+    mockCodeManagerService.stubFor(get(urlEqualTo("/code-manager/v1/deploys/status"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"file-sync-storage-status\": {\"deployed\": []}}")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Asynchronous Code Deploy Without Status");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.codeDeploy 'production', credentials: 'pe-test-token', async: true\n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+        story.j.assertLogContains("did not include the deploy queue", result);
+      }
+    });
+  }
+
+  @Test
+  public void codeDeploySkipsUnchangedCommit() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Skips Unchanged Commit");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.codeDeploy 'production', credentials: 'pe-test-token', commit: '45ddf48253c2ee7537aae05c7e674879fd8bb616'\n" +
+          "  results = puppet.codeDeploy 'production', credentials: 'pe-test-token', commit: '45ddf48253c2ee7537aae05c7e674879fd8bb616'\n" +
+          "  assert results.production.status == 'skipped' \n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Skipping deploy of [production], it is already at commit 45ddf48253c2ee7537aae05c7e674879fd8bb616", result);
+
+        verify(1, postRequestedFor(urlEqualTo("/code-manager/v1/deploys")));
+      }
+    });
+  }
+
+  @Test
+  public void codeDeploySharesConcurrentDeploys() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(2000)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        story.j.jenkins.setNumExecutors(4);
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Shares Concurrent Deploys");
+        job.setDefinition(new CpsFlowDefinition(
+          "parallel(\n" +
+          "  first: { puppet.codeDeploy 'production', credentials: 'pe-test-token' },\n" +
+          "  second: { sleep 1; puppet.codeDeploy 'production', credentials: 'pe-test-token' },\n" +
+          "  third: { sleep 1; puppet.codeDeploy 'production', credentials: 'pe-test-token' }\n" +
+          ")", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Another build is already waiting to deploy [production]. Sharing its deploy.", result);
+
+        verify(2, postRequestedFor(urlEqualTo("/code-manager/v1/deploys")));
+      }
+    });
+  }
+
+  @Test
+  public void codeDeployQueuedDeployRunsForABuildStillWaiting() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(2000)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        story.j.jenkins.setNumExecutors(4);
+
+        WorkflowJob running = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Running");
+        running.setDefinition(new CpsFlowDefinition("puppet.codeDeploy 'production', credentials: 'pe-test-token'", true));
+        WorkflowJob aborted = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Queued Then Aborted");
+        aborted.setDefinition(new CpsFlowDefinition("puppet.codeDeploy 'production', credentials: 'pe-test-token'", true));
+        WorkflowJob waiting = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Still Waiting");
+        waiting.setDefinition(new CpsFlowDefinition("puppet.codeDeploy 'production', credentials: 'pe-test-token'", true));
+
+        Future<WorkflowRun> runningBuild = running.scheduleBuild2(0);
+        Thread.sleep(500);
+        WorkflowRun abortedRun = aborted.scheduleBuild2(0).waitForStart();
+        Thread.sleep(500);
+        Future<WorkflowRun> waitingBuild = waiting.scheduleBuild2(0);
+        Thread.sleep(500);
+
+        abortedRun.getExecutor().interrupt();
+        story.j.waitForCompletion(abortedRun);
+        story.j.assertBuildStatus(Result.ABORTED, abortedRun);
+
+        story.j.assertBuildStatusSuccess(runningBuild.get());
+        WorkflowRun waitingRun = story.j.assertBuildStatusSuccess(waitingBuild.get());
+        story.j.assertLogContains("Another build is already waiting to deploy [production]. Sharing its deploy.", waitingRun);
+
+        // The queued deploy still ran once, for the build still waiting for it
+        verify(2, postRequestedFor(urlEqualTo("/code-manager/v1/deploys")));
+      }
+    });
+  }
+
+  @Test
+  public void codeDeployIsNotSharedBetweenTokens() throws Exception {
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withRequestBody(equalToJson("{\"environments\": [\"production\"], \"wait\": true}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(2000)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "code_deploy.json"))));
+
+    mockCodeManagerService.stubFor(post(urlEqualTo("/code-manager/v1/deploys"))
+        .withHeader("X-Authentication", equalTo("unauthorized_token_string"))
+        .willReturn(aResponse()
+            .withStatus(403)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"kind\": \"puppetlabs.rbac/user-unauthenticated\", \"msg\": \"Permission denied\"}")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        story.j.jenkins.setNumExecutors(4);
+
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-unauthorized-token", "PE unauthorized token", Secret.fromString("unauthorized_token_string"));
+        CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), credential);
+
+        WorkflowJob authorized = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy With Deploy Permission");
+        authorized.setDefinition(new CpsFlowDefinition("puppet.codeDeploy 'production', credentials: 'pe-test-token'", true));
+        WorkflowJob unauthorized = story.j.jenkins.createProject(WorkflowJob.class, "Code Deploy Without Deploy Permission");
+        unauthorized.setDefinition(new CpsFlowDefinition("puppet.codeDeploy 'production', credentials: 'pe-unauthorized-token'", true));
+
+        Future<WorkflowRun> authorizedBuild = authorized.scheduleBuild2(0);
+        Thread.sleep(500);
+        WorkflowRun unauthorizedRun = unauthorized.scheduleBuild2(0).get();
+
+        // The build without permission made its own deploy and was refused
+        story.j.assertBuildStatus(Result.FAILURE, unauthorizedRun);
+        story.j.assertLogNotContains("Sharing its deploy", unauthorizedRun);
+        story.j.assertBuildStatusSuccess(authorizedBuild.get());
+
+        verify(1, postRequestedFor(urlEqualTo("/code-manager/v1/deploys"))
+          .withHeader("X-Authentication", equalTo("unauthorized_token_string")));
+      }
+    });
+  }
+
   @Test
   public void codeDeployFailsOnNoSuchEnvironment() throws Exception {
 
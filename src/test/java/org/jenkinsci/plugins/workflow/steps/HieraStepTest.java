@@ -46,6 +46,7 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.common.ConsoleNotifier;
 
 import org.jenkinsci.plugins.puppetenterprise.models.HieraConfig;
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
 import org.jenkinsci.plugins.puppetenterprise.TestUtils;
 
 
@@ -57,6 +58,7 @@ import org.apache.http.entity.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.BasicHttpContext;
 
@@ -68,6 +70,10 @@ public class HieraStepTest extends Assert {
   @Rule
   public RestartableJenkinsRule story = new RestartableJenkinsRule();
 
+  private static String sha256(String text) {
+    return DigestUtils.sha256Hex(text);
+  }
+
   private LinkedTreeMap lookup(String scope, String key) {
     LinkedTreeMap responseHash = new LinkedTreeMap();
 
@@ -174,4 +180,220 @@ public class HieraStepTest extends Assert {
       }
     });
   }
+
+  @Test
+  public void setKeyValuePairsConcurrently() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        HieraConfig.deleteScope("concurrent");
+
+        //Create a job where parallel branches set keys in the same scope
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set Hiera Key/Value pairs concurrently");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  def branches = [:]\n" +
+          "  for (int i = 0; i < 20; i++) {\n" +
+          "    def n = i\n" +
+          "    branches['key' + n] = { puppet.hiera scope: 'concurrent', key: 'key' + n, value: 'value' + n }\n" +
+          "  }\n" +
+          "  parallel branches\n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        //Verify every key was kept
+        assertEquals(20, HieraConfig.getKeys("concurrent").size());
+        for (int i = 0; i < 20; i++) {
+          assertEquals("value" + i, (String) lookup("concurrent", "key" + i).get("key" + i));
+        }
+      }
+    });
+  }
+
+  @Test
+  public void journaledValuesSurviveReload() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        HieraConfig.deleteScope("journal");
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set Hiera Key/Value pair through the journal");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.hiera scope: 'journal', key: 'testkey', value: ['a', 'b']\n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        File journal = new File(story.j.jenkins.getRootDir(), "puppet_enterprise_hiera_store.journal");
+        assertTrue(journal.exists());
+
+        //Replay the journal on top of the snapshot
+        HieraConfig.loadGlobalConfig();
+        assertEquals(Arrays.asList("a", "b"), HieraConfig.getKeyValue("journal", "testkey"));
+
+        //Fold the journal into the snapshot
+        HieraConfig.save();
+        assertFalse(journal.exists());
+
+        HieraConfig.loadGlobalConfig();
+        assertEquals(Arrays.asList("a", "b"), HieraConfig.getKeyValue("journal", "testkey"));
+      }
+    });
+  }
+
+  @Test
+  public void failedWritesFailTheStep() throws Exception {
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        //A directory where the journal belongs makes every write fail
+        File journal = new File(story.j.jenkins.getRootDir(), "puppet_enterprise_hiera_store.journal");
+        HieraConfig.save();
+        assertTrue(journal.mkdir());
+
+        try {
+          WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set Hiera Key/Value pair without a journal");
+          job.setDefinition(new CpsFlowDefinition(
+            "node { \n" +
+            "  puppet.hiera scope: 'unwritable', key: 'testkey', value: 'testvalue'\n" +
+            "}", true));
+          WorkflowRun run = story.j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+          story.j.assertLogContains("Could not save Hiera key testkey to scope unwritable", run);
+        } finally {
+          //The failed write scheduled a save, which may already have moved the directory
+          journal.delete();
+          HieraConfig.save();
+          HieraConfig.deleteScope("unwritable");
+        }
+      }
+    });
+  }
+
+  @Test
+  public void setManyKeyValuePairsAtOnce() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        HieraConfig.deleteScope("batch-a");
+        HieraConfig.deleteScope("batch-b");
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set many Hiera Key/Value pairs at once");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.hiera scope: 'batch-a', values: [version: '1.2.3', image: 'app:1.2.3']\n" +
+          "  puppet.hiera scopes: ['batch-a': [flag: 'on'], 'batch-b': [version: '1.2.2']]\n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertEquals("1.2.3", (String) lookup("batch-a", "version").get("version"));
+        assertEquals("app:1.2.3", (String) lookup("batch-a", "image").get("image"));
+        assertEquals("on", (String) lookup("batch-a", "flag").get("flag"));
+        assertEquals("1.2.2", (String) lookup("batch-b", "version").get("version"));
+        assertEquals("Set many Hiera Key/Value pairs at once", HieraConfig.getKeySource("batch-b", "version"));
+
+        //Batches are replayed from the journal
+        HieraConfig.loadGlobalConfig();
+        assertEquals("app:1.2.3", HieraConfig.getKeyValue("batch-a", "image"));
+        assertEquals("1.2.2", HieraConfig.getKeyValue("batch-b", "version"));
+      }
+    });
+  }
+
+  @Test
+  public void delayedWritesAreFlushedOnShutdown() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        PuppetEnterpriseConfig.setHieraPersistence(HieraConfig.DURABILITY_DELAYED, 60000);
+
+        try {
+          WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set Hiera Key/Value pair with delayed writes");
+          job.setDefinition(new CpsFlowDefinition(
+            "node { \n" +
+            "  puppet.hiera scope: 'delayed', key: 'testkey', value: 'testvalue'\n" +
+            "}", true));
+          story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+          //The value is served right away, but not on disk yet
+          assertEquals("testvalue", (String) lookup("delayed", "testkey").get("testkey"));
+          assertTrue(HieraConfig.getPendingWrites() > 0);
+
+          HieraConfig.shutdown();
+          assertEquals(0, HieraConfig.getPendingWrites());
+
+          HieraConfig.loadGlobalConfig();
+          assertEquals("testvalue", HieraConfig.getKeyValue("delayed", "testkey"));
+        } finally {
+          PuppetEnterpriseConfig.setHieraPersistence(HieraConfig.DURABILITY_SYNC, PuppetEnterpriseConfig.DEFAULT_HIERA_FLUSH_DELAY);
+        }
+      }
+    });
+  }
+
+  @Test
+  public void scopesAreStoredInTheirOwnFiles() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        //A store from before scopes had their own files
+        HashMap keyData = new HashMap();
+        keyData.put("source", "Old Job");
+        keyData.put("value", "oldvalue");
+        HashMap legacyScope = new HashMap();
+        legacyScope.put("testkey", keyData);
+        HashMap legacy = new HashMap();
+        legacy.put("legacy", legacyScope);
+        HieraConfig.getConfigFile().write(legacy);
+
+        HieraConfig.loadGlobalConfig();
+        assertEquals("oldvalue", HieraConfig.getKeyValue("legacy", "testkey"));
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Set Hiera Key/Value pairs in separate scopes");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.hiera scope: 'shard-a', key: 'testkey', value: 'a'\n" +
+          "  puppet.hiera scope: 'shard/b', key: 'testkey', value: 'b'\n" +
+          "  puppet.hiera scope: 'Shard-A', key: 'testkey', value: 'upper'\n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        HieraConfig.save();
+
+        //Each scope has a file named by the digest of its name, plus the index
+        File scopes = new File(story.j.jenkins.getRootDir(), "puppet_enterprise_hiera_store");
+        assertEquals(5, scopes.list().length);
+        assertTrue(new File(scopes, "scopes.xml").exists());
+        assertTrue(new File(scopes, sha256("shard-a") + ".xml").exists());
+        assertFalse(HieraConfig.getConfigFile().exists());
+
+        //Scopes are only read once they are used
+        HieraConfig.loadGlobalConfig();
+        assertEquals(4, HieraConfig.getScopeCount());
+        assertEquals(0, HieraConfig.getLoadedScopeCount());
+
+        assertEquals("b", HieraConfig.getKeyValue("shard/b", "testkey"));
+        assertEquals(1, HieraConfig.getLoadedScopeCount());
+        assertEquals("a", HieraConfig.getKeyValue("shard-a", "testkey"));
+        assertEquals("upper", HieraConfig.getKeyValue("Shard-A", "testkey"));
+        assertEquals("oldvalue", HieraConfig.getKeyValue("legacy", "testkey"));
+        assertEquals("Old Job", HieraConfig.getKeySource("legacy", "testkey"));
+
+        //Deleting a scope deletes its file
+        HieraConfig.deleteScope("shard-a");
+        HieraConfig.save();
+        assertFalse(new File(scopes, sha256("shard-a") + ".xml").exists());
+
+        //A scope file missing from the index is still found
+        assertTrue(new File(scopes, "scopes.xml").delete());
+        HieraConfig.loadGlobalConfig();
+        assertEquals(3, HieraConfig.getScopeCount());
+        assertEquals("upper", HieraConfig.getKeyValue("Shard-A", "testkey"));
+      }
+    });
+  }
 }
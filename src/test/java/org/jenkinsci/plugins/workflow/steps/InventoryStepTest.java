@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.ClassRule;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.runners.model.Statement;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+
+import jenkins.model.Jenkins;
+import hudson.model.Result;
+import hudson.model.FreeStyleBuild;
+import hudson.util.Secret;
+import hudson.ExtensionList;
+import hudson.security.ACL;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.lang.StringBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.common.ConsoleNotifier;
+
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
+import org.jenkinsci.plugins.puppetenterprise.TestUtils;
+
+public class InventoryStepTest extends Assert {
+
+  @ClassRule
+  public static WireMockRule mockPuppetDBService = new WireMockRule(options()
+    .dynamicPort()
+    .httpsPort(8081)
+    .keystorePath(TestUtils.getKeystorePath())
+    .keystorePassword(TestUtils.getKeystorePassword()));
+
+  @ClassRule
+  public static BuildWatcher buildWatcher = new BuildWatcher();
+
+  @Rule
+  public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+  @Before
+  public void setup() {
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        try {
+          PuppetEnterpriseConfig.setPuppetMasterUrl("localhost");
+        }
+        catch(java.io.IOException e) {e.printStackTrace();}
+        catch(java.security.NoSuchAlgorithmException e) {e.printStackTrace();}
+        catch(java.security.KeyStoreException e) {e.printStackTrace();}
+        catch(java.security.KeyManagementException e) {e.printStackTrace();}
+
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-test-token", "PE test token", Secret.fromString("super_secret_token_string"));
+        CredentialsStore store = CredentialsProvider.lookupStores(story.j.jenkins).iterator().next();
+        store.addCredentials(Domain.global(), credential);
+      }
+    });
+  }
+
+  private String getInventoryResponseString() {
+    return TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "inventory.json");
+  }
+
+  @Test
+  public void lookUpNodesInInventoryIndex() throws Exception {
+
+    mockPuppetDBService.stubFor(get(urlEqualTo("/pdb/query/v4/inventory"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getInventoryResponseString())));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Inventory Index Lookups");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  webservers = puppet.inventory(['trusted.extensions.pp_role': 'webserver'])\n" +
+          "  assert webservers == ['web01.inf.puppet.vm', 'web02.inf.puppet.vm'] \n" +
+          "  pdx = puppet.inventory(['trusted.extensions.pp_role': 'webserver', 'trusted.extensions.pp_datacenter': 'pdx'])\n" +
+          "  assert pdx == ['web01.inf.puppet.vm'] \n" +
+          "  fourCores = puppet.inventory(['facts.processors.count': 4])\n" +
+          "  assert fourCores.size() == 2 \n" +
+          "  gitlab = puppet.inventoryNode 'gitlab.inf.puppet.vm'\n" +
+          "  assert gitlab.facts.os.family == 'RedHat' \n" +
+          "  assert puppet.inventoryNode('missing.inf.puppet.vm') == null \n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        // Lookups are answered from the index once it is loaded
+        verify(1, getRequestedFor(urlEqualTo("/pdb/query/v4/inventory")));
+      }
+    });
+  }
+
+  @Test
+  public void inventoryIndexIsKeptPerToken() throws Exception {
+
+    mockPuppetDBService.stubFor(get(urlEqualTo("/pdb/query/v4/inventory"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getInventoryResponseString())));
+
+    mockPuppetDBService.stubFor(get(urlEqualTo("/pdb/query/v4/inventory"))
+        .withHeader("X-Authentication", equalTo("unauthorized_token_string"))
+        .willReturn(aResponse()
+            .withStatus(403)
+            .withHeader("Content-Type", "text/plain")
+            .withBody("Permission denied")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-unauthorized-token", "PE unauthorized token", Secret.fromString("unauthorized_token_string"));
+        CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), credential);
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Inventory Index For One Token");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  assert puppet.inventoryNode('gitlab.inf.puppet.vm', credentials: 'pe-test-token') != null \n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        //Another token loads its own index rather than reading the one loaded above
+        WorkflowJob other = story.j.jenkins.createProject(WorkflowJob.class, "Inventory Index Is Not Shared With Another Token");
+        other.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.inventoryNode('gitlab.inf.puppet.vm', credentials: 'pe-unauthorized-token') \n" +
+          "}", true));
+        story.j.assertBuildStatus(Result.FAILURE, other.scheduleBuild2(0).get());
+
+        verify(1, getRequestedFor(urlEqualTo("/pdb/query/v4/inventory"))
+          .withHeader("X-Authentication", equalTo("unauthorized_token_string")));
+      }
+    });
+  }
+
+  @Test
+  public void concurrentLookupsShareOneRefresh() throws Exception {
+
+    mockPuppetDBService.stubFor(get(urlEqualTo("/pdb/query/v4/inventory"))
+        .withHeader("X-Authentication", equalTo("shared_refresh_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(2000)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getInventoryResponseString())));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-shared-refresh-token", "PE shared refresh token", Secret.fromString("shared_refresh_token_string"));
+        CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), credential);
+
+        String script =
+          "node { \n" +
+          "  assert puppet.inventoryNode('gitlab.inf.puppet.vm', credentials: 'pe-shared-refresh-token') != null \n" +
+          "}";
+
+        WorkflowJob first = story.j.jenkins.createProject(WorkflowJob.class, "Inventory Index First Concurrent Lookup");
+        first.setDefinition(new CpsFlowDefinition(script, true));
+        WorkflowJob second = story.j.jenkins.createProject(WorkflowJob.class, "Inventory Index Second Concurrent Lookup");
+        second.setDefinition(new CpsFlowDefinition(script, true));
+
+        Future<WorkflowRun> firstRun = first.scheduleBuild2(0);
+        Future<WorkflowRun> secondRun = second.scheduleBuild2(0);
+        story.j.assertBuildStatusSuccess(firstRun);
+        story.j.assertBuildStatusSuccess(secondRun);
+
+        //The lookup that found the index loading waited for that load
+        verify(1, getRequestedFor(urlEqualTo("/pdb/query/v4/inventory"))
+          .withHeader("X-Authentication", equalTo("shared_refresh_token_string")));
+      }
+    });
+  }
+}
@@ -37,7 +37,9 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.lang.StringBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Future;
@@ -48,6 +50,11 @@ import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.common.ConsoleNotifier;
 
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+
+import org.jenkinsci.plugins.puppetenterprise.http.PEScheduler;
+import org.jenkinsci.plugins.puppetenterprise.models.PollingPolicy;
 import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
 import org.jenkinsci.plugins.puppetenterprise.TestUtils;
 
@@ -114,7 +121,7 @@ public class PuppetJobStepTest extends Assert {
             .withHeader("Content-Type", "application/json")
             .withBody(getJobDetailsString())));
 
-    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/711/nodes"))
+    mockOrchestratorService.stubFor(get(urlPathEqualTo("/orchestrator/v1/jobs/711/nodes"))
         .withHeader("X-Authentication", equalTo("super_secret_token_string"))
         .willReturn(aResponse()
             .withStatus(200)
@@ -122,6 +129,50 @@ public class PuppetJobStepTest extends Assert {
             .withBody(getJobNodeResults())));
   }
 
+  private String jobStatus(String jobId, String state) {
+    return "{\"id\": \"https://localhost:8143/orchestrator/v1/jobs/" + jobId + "\", \"name\": \"" + jobId + "\", " +
+      "\"state\": \"" + state + "\", \"node_count\": 1, \"environment\": {\"name\": \"production\"}}";
+  }
+
+  private void stubJobDeploy(String environment, String jobId) {
+    mockOrchestratorService.stubFor(post(urlEqualTo("/orchestrator/v1/command/deploy"))
+        .withRequestBody(containing("\"" + environment + "\""))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"job\": {\"id\": \"https://localhost:8143/orchestrator/v1/jobs/" + jobId + "\", \"name\": \"" + jobId + "\"}}")));
+
+    mockOrchestratorService.stubFor(get(urlPathEqualTo("/orchestrator/v1/jobs/" + jobId + "/nodes"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getJobNodeResults())));
+  }
+
+  // Walks a job's status through the given states, one per poll
+  private void stubJobStates(String jobId, String... states) {
+    String previous = Scenario.STARTED;
+
+    for (int i = 0; i < states.length; i++) {
+      String next = i == states.length - 1 ? previous : "poll " + (i + 1);
+
+      mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/" + jobId))
+          .inScenario("Job " + jobId)
+          .whenScenarioStateIs(previous)
+          .willReturn(aResponse()
+              .withStatus(200)
+              .withHeader("Content-Type", "application/json")
+              .withBody(jobStatus(jobId, states[i])))
+          .willSetStateTo(next));
+
+      previous = next;
+    }
+  }
+
+  private List<LoggedRequest> statusPolls(String jobId) {
+    return mockOrchestratorService.findAll(getRequestedFor(urlEqualTo("/orchestrator/v1/jobs/" + jobId)));
+  }
+
   @Test
   public void puppetJobSeparateCredentialsCallSuccessful() throws Exception {
 
@@ -148,12 +199,84 @@ public class PuppetJobStepTest extends Assert {
         verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
 
-        verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711/nodes"))
+        verify(getRequestedFor(urlPathEqualTo("/orchestrator/v1/jobs/711/nodes"))
+            .withQueryParam("limit", equalTo("500"))
+            .withQueryParam("offset", equalTo("0"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
       }
       });
   }
 
+  @Test
+  public void puppetJobStreamsNodeEvents() throws Exception {
+
+    stubJobDeploySuccessful();
+
+    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/711/events?start=0"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "job_events.json"))));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Puppet Job Streams Node Events");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.job 'production', credentials: 'pe-test-token'\n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        story.j.assertLogContains("database-production.pdx.puppet.vm: running", result);
+        story.j.assertLogContains("database-production.pdx.puppet.vm: finished", result);
+
+        verify(getRequestedFor(urlEqualTo("/orchestrator/v1/jobs/711/events?start=0"))
+            .withHeader("X-Authentication", matching("super_secret_token_string")));
+      }
+    });
+  }
+
+  @Test
+  public void puppetJobWaitsForStatusToCatchUpWithEvents() throws Exception {
+
+    stubJobDeploy("lagging", "813");
+
+    //The job status still says running after the events say it finished
+    stubJobStates("813", "running", "running", "finished");
+
+    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/813/events?start=0"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "job_events.json"))));
+
+    mockOrchestratorService.stubFor(get(urlPathEqualTo("/orchestrator/v1/jobs/813/events"))
+        .withQueryParam("start", equalTo("1275"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"items\": []}")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Puppet Job Waits For Status To Catch Up With Events");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.job 'lagging', credentials: 'pe-test-token', pollInterval: 100, maxPollInterval: 200\n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Successfully ran Puppet job 813", result);
+
+        assertEquals(3, statusPolls("813").size());
+        mockOrchestratorService.verify(0, getRequestedFor(urlPathEqualTo("/orchestrator/v1/jobs/813/events"))
+            .withQueryParam("start", equalTo("1275")));
+      }
+    });
+  }
+
   @Test
   public void puppetJobCredentialsInMethodSuccessful() throws Exception {
 
@@ -178,7 +301,7 @@ public class PuppetJobStepTest extends Assert {
         verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
 
-        verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711/nodes"))
+        verify(getRequestedFor(urlPathEqualTo("/orchestrator/v1/jobs/711/nodes"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
       }
     });
@@ -201,7 +324,7 @@ public class PuppetJobStepTest extends Assert {
             .withHeader("Content-Type", "application/json")
             .withBody(TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "job_node_does_not_exist.json"))));
 
-    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/711/nodes"))
+    mockOrchestratorService.stubFor(get(urlPathEqualTo("/orchestrator/v1/jobs/711/nodes"))
         .withHeader("X-Authentication", equalTo("super_secret_token_string"))
         .willReturn(aResponse()
             .withStatus(200)
@@ -229,7 +352,7 @@ public class PuppetJobStepTest extends Assert {
         verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
 
-        verify(getRequestedFor(urlMatching("/orchestrator/v1/jobs/711/nodes"))
+        verify(getRequestedFor(urlPathEqualTo("/orchestrator/v1/jobs/711/nodes"))
             .withHeader("X-Authentication", matching("super_secret_token_string")));
       }
     });
@@ -405,4 +528,132 @@ public class PuppetJobStepTest extends Assert {
       }
     });
   }
+
+  @Test
+  public void puppetJobBacksOffWhileStateIsUnchanged() throws Exception {
+
+    stubJobDeploy("backoff", "811");
+    stubJobStates("811", "running", "running", "running", "running", "running", "stopping", "finished");
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        //No jitter, so the delays between polls are exact
+        PuppetEnterpriseConfig.setPollingPolicy(new PollingPolicy(1000, 30000, 2.0, 0.0));
+
+        //Records the delays the step asks for rather than timing the polls
+        final List<Long> delays = Collections.synchronizedList(new ArrayList<Long>());
+        PEScheduler.setListener(new PEScheduler.Listener() {
+          @Override public void onSchedule(Runnable task, long delay, TimeUnit unit) {
+            if (task.getClass().getName().startsWith(PuppetJobStep.class.getName())) {
+              delays.add(unit.toMillis(delay));
+            }
+          }
+        });
+
+        try {
+          WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Puppet Job Backs Off While State Is Unchanged");
+          job.setDefinition(new CpsFlowDefinition(
+            "node { \n" +
+            "  puppet.job 'backoff', credentials: 'pe-test-token', pollInterval: 100, maxPollInterval: 800\n" +
+            "}", true));
+          story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        } finally {
+          PEScheduler.setListener(null);
+          PuppetEnterpriseConfig.setPollingPolicy(PollingPolicy.defaults());
+        }
+
+        assertEquals(7, statusPolls("811").size());
+
+        //The job is created and first polled right away. The step's intervals
+        //replace the global ones. The delay doubles while the job stays
+        //running, stops at the maximum, and resets once the job moves on to
+        //stopping.
+        assertEquals(Arrays.asList(0L, 0L, 100L, 200L, 400L, 800L, 800L, 100L), delays);
+      }
+    });
+  }
+
+  @Test
+  public void abortingBuildCancelsScheduledPoll() throws Exception {
+
+    stubJobDeploy("abort", "812");
+    stubJobStates("812", "running");
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Puppet Job Aborted While Polling");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.job 'abort', credentials: 'pe-test-token', pollInterval: 100, maxPollInterval: 200\n" +
+          "}", true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (statusPolls("812").size() < 3) {
+          assertTrue("The job was never polled", System.currentTimeMillis() < deadline);
+          Thread.sleep(50);
+        }
+
+        run.getExecutor().interrupt();
+        story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(run));
+        story.j.assertLogContains("Stopped tracking Puppet job 812", run);
+
+        //No poll runs after the build is aborted
+        int polled = statusPolls("812").size();
+        Thread.sleep(1000);
+        assertEquals(polled, statusPolls("812").size());
+      }
+    });
+  }
+
+  @Test
+  public void puppetJobPagesNodesWithoutNodeCount() throws Exception {
+
+    stubJobDeploy("paging", "814");
+
+    //A job status without a node count
+    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/814"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"id\": \"https://localhost:8143/orchestrator/v1/jobs/814\", \"name\": \"814\", " +
+              "\"state\": \"finished\", \"environment\": {\"name\": \"production\"}}")));
+
+    StringBuilder fullPage = new StringBuilder("{\"items\": [");
+    for (int i = 0; i < 500; i++) {
+      fullPage.append(i == 0 ? "" : ", ").append("{\"name\": \"node" + i + ".inf.puppet.vm\", \"state\": \"finished\"}");
+    }
+    fullPage.append("]}");
+
+    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/814/nodes?limit=500&offset=0"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(fullPage.toString())));
+
+    mockOrchestratorService.stubFor(get(urlEqualTo("/orchestrator/v1/jobs/814/nodes?limit=500&offset=500"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"items\": [{\"name\": \"node500.inf.puppet.vm\", \"state\": \"finished\"}]}")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Puppet Job Pages Nodes Without Node Count");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.job 'paging', credentials: 'pe-test-token'\n" +
+          "}", true));
+        WorkflowRun run = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        //Paging stops at the short page, not after the first full one
+        story.j.assertLogContains("node500.inf.puppet.vm", run);
+        verify(getRequestedFor(urlEqualTo("/orchestrator/v1/jobs/814/nodes?limit=500&offset=500")));
+        verify(0, getRequestedFor(urlEqualTo("/orchestrator/v1/jobs/814/nodes?limit=500&offset=501")));
+      }
+    });
+  }
 }
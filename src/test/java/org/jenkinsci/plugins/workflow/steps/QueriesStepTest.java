@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.workflow.steps;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.ClassRule;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.runners.model.Statement;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+
+import jenkins.model.Jenkins;
+import hudson.model.Result;
+import hudson.model.FreeStyleBuild;
+import hudson.util.Secret;
+import hudson.ExtensionList;
+import hudson.security.ACL;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.lang.StringBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.common.ConsoleNotifier;
+
+import org.jenkinsci.plugins.puppetenterprise.models.PuppetEnterpriseConfig;
+import org.jenkinsci.plugins.puppetenterprise.TestUtils;
+
+public class QueriesStepTest extends Assert {
+
+  @ClassRule
+  public static WireMockRule mockPuppetDBService = new WireMockRule(options()
+    .dynamicPort()
+    .httpsPort(8081)
+    .keystorePath(TestUtils.getKeystorePath())
+    .keystorePassword(TestUtils.getKeystorePassword()));
+
+  @ClassRule
+  public static BuildWatcher buildWatcher = new BuildWatcher();
+
+  @Rule
+  public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+  @Before
+  public void setup() {
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        try {
+          PuppetEnterpriseConfig.setPuppetMasterUrl("localhost");
+        }
+        catch(java.io.IOException e) {e.printStackTrace();}
+        catch(java.security.NoSuchAlgorithmException e) {e.printStackTrace();}
+        catch(java.security.KeyStoreException e) {e.printStackTrace();}
+        catch(java.security.KeyManagementException e) {e.printStackTrace();}
+
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-test-token", "PE test token", Secret.fromString("super_secret_token_string"));
+        CredentialsStore store = CredentialsProvider.lookupStores(story.j.jenkins).iterator().next();
+        store.addCredentials(Domain.global(), credential);
+      }
+    });
+  }
+
+  private String getNodeQueryResponseString() {
+    return TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "node_results.json");
+  }
+
+  private String getBadQueryString() {
+    return TestUtils.getFileContents(TestUtils.getAPIResonsesBasesPath() + "bad_query.json");
+  }
+
+  @Test
+  public void queryPuppetDBConcurrently() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes {}\"}"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(500)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getNodeQueryResponseString())));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"reports {}\"}"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(500)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Concurrent Queries of Nodes and Reports");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.queries([nodes: 'nodes {}', reports: 'reports {}'], parallelism: 2)\n" +
+          "  assert results.size() == 2 \n" +
+          "  assert results.nodes[0].certname == 'gitlab.inf.puppet.vm' \n" +
+          "  assert results.reports.size() == 0 \n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Ran 2 PuppetDB queries, 2 at a time", result);
+
+        verify(2, postRequestedFor(urlMatching("/pdb/query/v4")));
+      }
+    });
+  }
+
+  @Test
+  public void failedQueryFailsAll() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes {}\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getNodeQueryResponseString())));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes badquery {}\"}"))
+        .willReturn(aResponse()
+            .withStatus(400)
+            .withHeader("Content-Type", "text/plain")
+            .withBody(getBadQueryString())));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Failed Concurrent Queries With Malformed PQL Query");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  puppet.queries([good: 'nodes {}', bad: 'nodes badquery {}'])\n" +
+          "}", true));
+        WorkflowRun result = job.scheduleBuild2(0).get();
+        story.j.assertBuildStatus(Result.FAILURE, result);
+        story.j.assertLogContains("Query 'bad' failed", result);
+      }
+    });
+  }
+}
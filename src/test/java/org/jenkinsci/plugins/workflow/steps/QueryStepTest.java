@@ -28,6 +28,7 @@ import hudson.model.Result;
 import hudson.model.FreeStyleBuild;
 import hudson.util.Secret;
 import hudson.ExtensionList;
+import hudson.FilePath;
 import hudson.security.ACL;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
@@ -128,6 +129,337 @@ public class QueryStepTest extends Assert {
     });
   }
 
+  @Test
+  public void queryPuppetDBToOutputFile() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withHeader("content-type", equalTo("application/json"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getNodeQueryResponseString())));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Query Results Written to Workspace File");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'nodes {}', outputFile: 'results/nodes.ndjson'\n" +
+          "  assert results.rows == 10 \n" +
+          "  assert fileExists('results/nodes.ndjson') \n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Wrote 10 PuppetDB results", result);
+
+        String contents = story.j.jenkins.getWorkspaceFor(job).child("results/nodes.ndjson").readToString();
+        assertEquals(10, contents.split("\n").length);
+        assertTrue(contents.startsWith("{"));
+        assertTrue(contents.contains("gitlab.inf.puppet.vm"));
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBToOutputFileLeavesNoPartialFile() throws Exception {
+
+    //The second row is cut short
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(containing("broken"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\"}, {\"certname\": }]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Failed Query Leaves No Workspace File");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.query 'nodes { certname = \"broken\" }', credentials: 'pe-test-token', outputFile: 'results/broken.ndjson'\n" +
+          "}", true));
+        story.j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+
+        FilePath results = story.j.jenkins.getWorkspaceFor(job).child("results");
+        assertFalse(results.child("broken.ndjson").exists());
+        assertEquals(0, results.list().size());
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBInPages() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname] {}\", \"limit\": 2, \"offset\": 0, \"order_by\": [{\"field\": \"certname\", \"order\": \"asc\"}]}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\"}, {\"certname\": \"b.inf.puppet.vm\"}]")));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname] {}\", \"limit\": 2, \"offset\": 2, \"order_by\": [{\"field\": \"certname\", \"order\": \"asc\"}]}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"c.inf.puppet.vm\"}]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Paged Query of All Nodes");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'nodes[certname] {}', pageSize: 2, orderBy: 'certname'\n" +
+          "  certnames = []\n" +
+          "  while (results.hasNext()) {\n" +
+          "    certnames.add(results.next().certname)\n" +
+          "  }\n" +
+          "  assert certnames == ['a.inf.puppet.vm', 'b.inf.puppet.vm', 'c.inf.puppet.vm'] \n" +
+          "  assert results.getRowsRead() == 3 \n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        verify(2, postRequestedFor(urlMatching("/pdb/query/v4")));
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBCachedResults() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"inventory[certname] { facts.os.family = \\\"RedHat\\\" }\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getNodeQueryResponseString())));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Cached Query of Inventory");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  first = puppet.query 'inventory[certname] { facts.os.family = \"RedHat\" }', cacheTtl: 60\n" +
+          "  first[0].certname = 'modified'\n" +
+          "  second = puppet.query 'inventory[certname]  {  facts.os.family = \"RedHat\" }', cacheTtl: 60\n" +
+          "  assert second[0].certname == 'gitlab.inf.puppet.vm' \n" +
+          "  third = puppet.query 'inventory[certname] { facts.os.family = \"RedHat\" }', cacheTtl: 60, bypassCache: true\n" +
+          "  assert third.size() == 10 \n" +
+          "}", true));
+        WorkflowRun result = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("Using cached PuppetDB results", result);
+
+        verify(2, postRequestedFor(urlMatching("/pdb/query/v4")));
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBCachedResultsAreKeptPerToken() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withHeader("X-Authentication", equalTo("super_secret_token_string"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname] { deactivated is null }\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(getNodeQueryResponseString())));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withHeader("X-Authentication", equalTo("unauthorized_token_string"))
+        .willReturn(aResponse()
+            .withStatus(403)
+            .withHeader("Content-Type", "text/plain")
+            .withBody("Permission denied")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        StringCredentialsImpl credential = new StringCredentialsImpl(CredentialsScope.GLOBAL, "pe-unauthorized-token", "PE unauthorized token", Secret.fromString("unauthorized_token_string"));
+        CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), credential);
+
+        WorkflowJob cached = story.j.jenkins.createProject(WorkflowJob.class, "Cache Query Results For One Token");
+        cached.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.query 'nodes[certname] { deactivated is null }', cacheTtl: 60, credentials: 'pe-test-token'\n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(cached.scheduleBuild2(0));
+
+        //Another token gets its own answer from PuppetDB, not the cached results
+        WorkflowJob other = story.j.jenkins.createProject(WorkflowJob.class, "Cached Query Results Are Not Shared With Another Token");
+        other.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.query 'nodes[certname] { deactivated is null }', cacheTtl: 60, credentials: 'pe-unauthorized-token'\n" +
+          "}", true));
+        WorkflowRun result = other.scheduleBuild2(0).get();
+        story.j.assertBuildStatus(Result.FAILURE, result);
+        story.j.assertLogNotContains("Using cached PuppetDB results", result);
+
+        verify(postRequestedFor(urlMatching("/pdb/query/v4"))
+            .withHeader("X-Authentication", matching("unauthorized_token_string")));
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBColumnar() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"inventory[certname, facts.processors.count] {}\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\", \"facts.processors.count\": 2}, {\"certname\": \"b.inf.puppet.vm\", \"facts.processors.count\": 4}]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Columnar Query of Inventory");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'inventory[certname, facts.processors.count] {}', columnar: true\n" +
+          "  assert results.certname instanceof String[] \n" +
+          "  assert results.certname[1] == 'b.inf.puppet.vm' \n" +
+          "  assert results['facts.processors.count'] instanceof long[] \n" +
+          "  assert results['facts.processors.count'][1] == 4 \n" +
+          "  certnames = puppet.query 'inventory[certname, facts.processors.count] {}', certnamesOnly: true\n" +
+          "  assert certnames instanceof String[] \n" +
+          "  assert certnames[0] == 'a.inf.puppet.vm' \n" +
+          "}", true));
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBColumnarKeepsLargeIntegersAndRequiresCertnames() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"resources[certname, line] {}\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\", \"line\": 9007199254740993}, {\"line\": 1.5}]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Columnar Query of Large Integers");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'resources[certname, line] {}', columnar: true\n" +
+          "  assert results.line[0] == 9007199254740993L \n" +
+          "  assert results.line[1] == 1.5d \n" +
+          "  puppet.query 'resources[certname, line] {}', certnamesOnly: true\n" +
+          "}", true));
+        WorkflowRun run = story.j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+        story.j.assertLogContains("certnamesOnly requires", run);
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBIncrementally() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname, producer_timestamp] {}\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\", \"producer_timestamp\": \"2016-12-09T18:47:41.195Z\"}, " +
+                      "{\"certname\": \"b.inf.puppet.vm\", \"producer_timestamp\": \"2016-12-09T18:40:00.000Z\"}]")));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname, producer_timestamp] { producer_timestamp >= \\\"2016-12-09T18:47:41.195Z\\\" }\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"b.inf.puppet.vm\", \"producer_timestamp\": \"2016-12-09T19:00:00.000Z\"}]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Incremental Query of Nodes");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'nodes[certname, producer_timestamp] {}', incremental: true\n" +
+          "  echo \"changed=${results.changed.size()} total=${results.total} watermark=${results.watermark}\" \n" +
+          "  echo \"rows=${results.rows.collect { it.certname }.sort()}\" \n" +
+          "}", true));
+
+        WorkflowRun first = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("changed=2 total=2 watermark=2016-12-09T18:47:41.195Z", first);
+
+        WorkflowRun second = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("1 PuppetDB results changed since 2016-12-09T18:47:41.195Z", second);
+        story.j.assertLogContains("changed=1 total=2 watermark=2016-12-09T19:00:00.000Z", second);
+        story.j.assertLogContains("rows=[a.inf.puppet.vm, b.inf.puppet.vm]", second);
+      }
+    });
+  }
+
+  @Test
+  public void queryPuppetDBIncrementallyBindsTheOuterFilter() throws Exception {
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname, producer_timestamp] { certname in inventory[certname] { facts.kernel = \\\"Linux\\\" } and certname != \\\"}\\\" }\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[{\"certname\": \"a.inf.puppet.vm\", \"producer_timestamp\": \"2016-12-09T18:47:41.195Z\"}]")));
+
+    mockPuppetDBService.stubFor(post(urlEqualTo("/pdb/query/v4"))
+        .withRequestBody(equalToJson("{\"query\": \"nodes[certname, producer_timestamp] { (certname in inventory[certname] { facts.kernel = \\\"Linux\\\" } and certname != \\\"}\\\") and producer_timestamp >= \\\"2016-12-09T18:47:41.195Z\\\" }\"}"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("[]")));
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Incremental Query with Subquery");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  results = puppet.query 'nodes[certname, producer_timestamp] { certname in inventory[certname] { facts.kernel = \"Linux\" } and certname != \"}\" }', incremental: true\n" +
+          "  echo \"changed=${results.changed.size()} total=${results.total}\" \n" +
+          "}", true));
+
+        story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        WorkflowRun second = story.j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        story.j.assertLogContains("changed=0 total=1", second);
+
+        WorkflowJob paged = story.j.jenkins.createProject(WorkflowJob.class, "Incremental Query with Limit");
+        paged.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.credentials 'pe-test-token'\n" +
+          "  puppet.query 'nodes[certname, producer_timestamp] { certname ~ \"limit\" limit 10 }', incremental: true\n" +
+          "}", true));
+        WorkflowRun run = story.j.assertBuildStatus(Result.FAILURE, paged.scheduleBuild2(0).get());
+        story.j.assertLogContains("Incremental queries can't use limit", run);
+      }
+    });
+  }
+
   @Test
   public void queryPuppetDBNEmptyResults() throws Exception {
 
@@ -188,4 +520,24 @@ public class QueryStepTest extends Assert {
       }
     });
   }
+
+  @Test
+  public void queryPuppetDBCacheTtlOnlyForPlainQueries() throws Exception {
+
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "Cached Columnar PQL Query");
+        job.setDefinition(new CpsFlowDefinition(
+          "node { \n" +
+          "  puppet.query 'inventory[certname] {}', credentials: 'pe-test-token', cacheTtl: 60, columnar: true\n" +
+          "}", true));
+        WorkflowRun result = job.scheduleBuild2(0).get();
+        story.j.assertBuildStatus(Result.FAILURE, result);
+        story.j.assertLogContains("cacheTtl can't be used with columnar", result);
+
+        verify(0, postRequestedFor(urlEqualTo("/pdb/query/v4")).withRequestBody(containing("inventory[certname] {}")));
+      }
+    });
+  }
 }